@@ -0,0 +1,201 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.app.Activity;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.objenesis.ObjenesisStd;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the track, identify and screen paths of {@link FirebaseIntegration}, and of {@link
+ * FirebaseIntegration#makeKey(String)}. Run with {@code -Pgc} to also report allocation per
+ * operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FirebaseIntegrationBenchmark {
+
+  private static final ScreenPayload SCREEN =
+      new ScreenPayload.Builder().anonymousId("anonymous").name("Home").build();
+  private static final ScreenPayload OTHER_SCREEN =
+      new ScreenPayload.Builder().anonymousId("anonymous").name("Cart").build();
+
+  /** A fresh integration sending to a {@link StubSink}, with a started activity. */
+  @State(Scope.Thread)
+  public static class IntegrationState {
+
+    StubSink sink;
+    FirebaseIntegration integration;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      sink = new StubSink();
+      integration =
+          new FirebaseIntegration(
+              sink,
+              Logger.with(Analytics.LogLevel.NONE),
+              new FirebaseIntegration.Options.Builder().build(),
+              FirebaseSettings.DEFAULT,
+              null);
+      // Activity cannot be constructed off-device, so skip its constructor.
+      integration.onActivityStarted(new ObjenesisStd().newInstance(Activity.class));
+    }
+
+    @TearDown(Level.Iteration)
+    public void consume(Blackhole blackhole) {
+      blackhole.consume(sink.events + sink.params + sink.userProperties + sink.screens);
+    }
+  }
+
+  /** An "Order Completed" event with {@code cartSize} products, or a plain event for 0. */
+  @State(Scope.Thread)
+  public static class TrackState {
+
+    @Param({"0", "10", "100"})
+    public int cartSize;
+
+    TrackPayload track;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      Properties properties =
+          new Properties()
+              .putValue("order_id", "50314b8e9bcf000000000000")
+              .putValue("total", 27.5)
+              .putValue("shipping", 3.0)
+              .putValue("tax", 2.0)
+              .putValue("coupon", "hasbros")
+              .putValue("app variant", "release")
+              .putValue("experiment.bucket", "b");
+      if (cartSize > 0) {
+        List<Properties.Product> products = new ArrayList<>(cartSize);
+        for (int i = 0; i < cartSize; i++) {
+          Properties.Product product =
+              new Properties.Product("507f1f77bcf86cd7994390" + i, "45790-" + i, 19.0 + i);
+          product.putName("Monopoly: 3rd Edition");
+          product.put("category", "Games");
+          product.put("quantity", 1);
+          product.put("image_url", "https://www.example.com/product/path.jpg");
+          products.add(product);
+        }
+        properties.putValue("products", products);
+      }
+      track =
+          new TrackPayload.Builder()
+              .anonymousId("anonymous")
+              .event(cartSize > 0 ? "Order Completed" : "Video Playback Started")
+              .properties(properties)
+              .build();
+    }
+  }
+
+  /** Two identify payloads with {@code traitCount} traits whose values all differ. */
+  @State(Scope.Thread)
+  public static class IdentifyState {
+
+    @Param({"5", "50"})
+    public int traitCount;
+
+    IdentifyPayload first;
+    IdentifyPayload second;
+    int calls;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      first = identify("a");
+      second = identify("b");
+    }
+
+    private IdentifyPayload identify(String suffix) {
+      Map<String, Object> traits = new LinkedHashMap<>(traitCount);
+      for (int i = 0; i < traitCount; i++) {
+        traits.put("trait " + i, "value " + suffix);
+      }
+      return new IdentifyPayload.Builder().userId("user-" + suffix).traits(traits).build();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class KeyState {
+
+    static final String[] KEYS = {
+      "product_id",
+      "Sign Up Date",
+      "  extra spaces  ",
+      "key.with.periods",
+      "test-event-dashed",
+      "a:b",
+      "a very long property name that has to be truncated to forty characters"
+    };
+
+    int index;
+  }
+
+  /** Counts screen calls, to alternate between screens. */
+  @State(Scope.Thread)
+  public static class ScreenState {
+
+    int calls;
+  }
+
+  @Benchmark
+  public void track(IntegrationState state, TrackState track) {
+    state.integration.track(track.track);
+  }
+
+  /**
+   * Every trait differs from the previous call. Firebase keeps at most 25 user properties, so with
+   * 50 traits only the first 25 are forwarded and the rest are dropped as over the limit.
+   */
+  @Benchmark
+  public void identifyChanged(IntegrationState state, IdentifyState identify) {
+    state.integration.identify((identify.calls++ & 1) == 0 ? identify.first : identify.second);
+  }
+
+  /** Same traits as the previous call; measures diffing against the last values sent. */
+  @Benchmark
+  public void identifyUnchanged(IntegrationState state, IdentifyState identify) {
+    state.integration.identify(identify.first);
+  }
+
+  /** Alternates between two screens, so that every call is sent rather than skipped as a repeat. */
+  @Benchmark
+  public void screen(IntegrationState state, ScreenState screen) {
+    state.integration.screen((screen.calls++ & 1) == 0 ? SCREEN : OTHER_SCREEN);
+  }
+
+  /** The same screen as the previous call; measures skipping repeated screens. */
+  @Benchmark
+  public void screenRepeated(IntegrationState state) {
+    state.integration.screen(SCREEN);
+  }
+
+  @Benchmark
+  public String makeKey(KeyState keys) {
+    String key = KeyState.KEYS[keys.index];
+    keys.index = (keys.index + 1) % KeyState.KEYS.length;
+    return FirebaseIntegration.makeKey(key);
+  }
+}
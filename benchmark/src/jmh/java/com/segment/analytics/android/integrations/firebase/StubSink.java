@@ -0,0 +1,45 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+/**
+ * A {@link FirebaseSink} that only counts calls, so benchmarks measure the integration and not
+ * Firebase. The counters are read after each iteration, which keeps the JIT from eliminating the
+ * work that produced the arguments.
+ */
+class StubSink implements FirebaseSink {
+
+  int events;
+  int params;
+  int userProperties;
+  int screens;
+
+  @Override
+  public void logEvent(String name, Bundle params) {
+    events++;
+    this.params += params.size();
+  }
+
+  @Override
+  public void setUserProperty(String name, String value) {
+    userProperties++;
+  }
+
+  @Override
+  public void setUserId(String id) {
+    userProperties++;
+  }
+
+  @Override
+  public void setCurrentScreen(Activity activity, String screenName, String screenClassOverride) {
+    screens++;
+  }
+
+  @Override
+  public void setDefaultEventParameters(Bundle params) {
+    if (params != null) {
+      this.params += params.size();
+    }
+  }
+}
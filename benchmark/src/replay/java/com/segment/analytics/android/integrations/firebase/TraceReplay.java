@@ -0,0 +1,278 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.app.Activity;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Cartographer;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.BasePayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.objenesis.ObjenesisStd;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Replays a trace of recorded Segment payloads through {@link FirebaseIntegration} as fast as
+ * possible, and reports throughput, per-call latency and allocation per call. Unlike the JMH
+ * benchmarks, the key cardinality, property shapes and cart sizes are those of real traffic.
+ *
+ * <p>The trace is newline-delimited JSON, one payload per line, in the shape Segment sources send
+ * them: {@code type} is {@code track}, {@code identify} or {@code screen}; lines of any other type
+ * are skipped. Payloads are parsed before the replay starts, so parsing is not measured.
+ *
+ * <pre>
+ * TraceReplay [--threads N] [--warmup N] [--settings settings.json] trace.ndjson
+ * </pre>
+ *
+ * <p>With several threads, payload {@code i} is replayed by thread {@code i % N}, all against the
+ * same integration. Each warmup pass replays the whole trace without measuring. Every pass gets a
+ * fresh integration and freshly compiled settings, so the measured pass does not start with the
+ * user properties, screens, dedup entries or rate limits left over from warmup; only the JIT and
+ * the process-wide key cache are warm.
+ */
+public final class TraceReplay {
+
+  private static final Cartographer CARTOGRAPHER = new Cartographer.Builder().lenient(true).build();
+
+  public static void main(String[] args) throws Exception {
+    int threads = 1;
+    int warmup = 1;
+    String settingsPath = null;
+    String tracePath = null;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--threads":
+          threads = Integer.parseInt(args[++i]);
+          break;
+        case "--warmup":
+          warmup = Integer.parseInt(args[++i]);
+          break;
+        case "--settings":
+          settingsPath = args[++i];
+          break;
+        default:
+          tracePath = args[i];
+      }
+    }
+    if (tracePath == null || threads <= 0 || warmup < 0) {
+      System.err.println(
+          "Usage: TraceReplay [--threads N] [--warmup N] [--settings settings.json] trace.ndjson");
+      System.exit(2);
+    }
+
+    ValueMap settings =
+        settingsPath == null ? new ValueMap() : new ValueMap(readJson(settingsPath));
+    List<BasePayload> payloads = readTrace(tracePath);
+    if (payloads.isEmpty()) {
+      System.err.println("No track, identify or screen payloads in " + tracePath);
+      System.exit(1);
+    }
+
+    for (int i = 0; i < warmup; i++) {
+      replay(newIntegration(new RecordingFirebaseSink(0), settings), payloads, threads);
+    }
+    // Only count calls, so the sink costs almost nothing and memory stays flat.
+    RecordingFirebaseSink sink = new RecordingFirebaseSink(0);
+    Result result = replay(newIntegration(sink, settings), payloads, threads);
+    result.print(System.out, payloads.size(), threads, sink.callCount());
+  }
+
+  /** Returns an integration with no state from earlier passes, with a started activity. */
+  private static FirebaseIntegration newIntegration(FirebaseSink sink, ValueMap settings) {
+    FirebaseIntegration integration =
+        new FirebaseIntegration(
+            sink,
+            Logger.with(Analytics.LogLevel.NONE),
+            new FirebaseIntegration.Options.Builder().build(),
+            FirebaseSettings.compile(settings),
+            null);
+    // Activity cannot be constructed off-device, so skip its constructor.
+    integration.onActivityStarted(new ObjenesisStd().newInstance(Activity.class));
+    return integration;
+  }
+
+  private static Map<String, Object> readJson(String path) throws IOException {
+    try (InputStreamReader reader = new InputStreamReader(new FileInputStream(path), "UTF-8")) {
+      return CARTOGRAPHER.fromJson(reader);
+    }
+  }
+
+  private static List<BasePayload> readTrace(String path) throws IOException {
+    List<BasePayload> payloads = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"))) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        try {
+          BasePayload payload = toPayload(new ValueMap(CARTOGRAPHER.fromJson(line)));
+          if (payload != null) {
+            payloads.add(payload);
+          }
+        } catch (IOException | RuntimeException e) {
+          System.err.println("Skipping line " + lineNumber + ": " + e.getMessage());
+        }
+      }
+    }
+    return payloads;
+  }
+
+  /** Rebuilds a payload from its JSON form, or returns {@code null} for unsupported types. */
+  private static BasePayload toPayload(ValueMap json) {
+    String type = json.getString("type");
+    BasePayload.Builder<?, ?> builder;
+    if ("track".equals(type)) {
+      builder =
+          new TrackPayload.Builder()
+              .event(json.getString("event"))
+              .properties(orEmpty(json.getValueMap("properties")));
+    } else if ("identify".equals(type)) {
+      builder = new IdentifyPayload.Builder().traits(orEmpty(json.getValueMap("traits")));
+    } else if ("screen".equals(type)) {
+      builder =
+          new ScreenPayload.Builder()
+              .name(json.getString("name"))
+              .category(json.getString("category"))
+              .properties(orEmpty(json.getValueMap("properties")));
+    } else {
+      return null;
+    }
+    String userId = json.getString("userId");
+    String anonymousId = json.getString("anonymousId");
+    if (userId != null) {
+      builder.userId(userId);
+    }
+    builder.anonymousId(anonymousId != null ? anonymousId : "anonymous");
+    return builder.build();
+  }
+
+  private static ValueMap orEmpty(ValueMap map) {
+    return map == null ? new ValueMap() : map;
+  }
+
+  private static Result replay(
+      final FirebaseIntegration integration, final List<BasePayload> payloads, final int threads)
+      throws InterruptedException {
+    final Result result = new Result(payloads.size());
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int offset = t;
+      workers[t] =
+          new Thread("TraceReplay-" + t) {
+            @Override
+            public void run() {
+              try {
+                start.await();
+              } catch (InterruptedException e) {
+                return;
+              }
+              long allocatedBefore = allocatedBytes();
+              for (int i = offset; i < payloads.size(); i += threads) {
+                BasePayload payload = payloads.get(i);
+                long callStart = System.nanoTime();
+                dispatch(integration, payload);
+                result.latencies[i] = System.nanoTime() - callStart;
+              }
+              result.addAllocated(allocatedBytes() - allocatedBefore);
+            }
+          };
+      workers[t].start();
+    }
+    long wallStart = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    result.wallNanos = System.nanoTime() - wallStart;
+    return result;
+  }
+
+  private static void dispatch(FirebaseIntegration integration, BasePayload payload) {
+    switch (payload.type()) {
+      case track:
+        integration.track((TrackPayload) payload);
+        break;
+      case identify:
+        integration.identify((IdentifyPayload) payload);
+        break;
+      case screen:
+        integration.screen((ScreenPayload) payload);
+        break;
+      default:
+        throw new AssertionError("Unexpected payload type " + payload.type());
+    }
+  }
+
+  /** Bytes allocated so far by the current thread, or -1 if the JVM can't tell. */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+    }
+    return -1;
+  }
+
+  /** Measurements from a single replay. Latencies are indexed like the payloads. */
+  private static final class Result {
+
+    final long[] latencies;
+    long wallNanos;
+    private long allocated;
+    private boolean allocationUnknown;
+
+    Result(int size) {
+      this.latencies = new long[size];
+    }
+
+    synchronized void addAllocated(long bytes) {
+      if (bytes < 0) {
+        allocationUnknown = true;
+      } else {
+        allocated += bytes;
+      }
+    }
+
+    void print(java.io.PrintStream out, int calls, int threads, long sinkCalls) {
+      long[] sorted = latencies.clone();
+      Arrays.sort(sorted);
+      double seconds = wallNanos / 1e9;
+      out.printf(Locale.US, "Payloads:        %d (%d threads)%n", calls, threads);
+      out.printf(Locale.US, "Firebase calls:  %d%n", sinkCalls);
+      out.printf(Locale.US, "Wall time:       %.3f s%n", seconds);
+      out.printf(Locale.US, "Throughput:      %.0f events/s%n", calls / seconds);
+      out.printf(Locale.US, "Latency p50:     %.2f us%n", percentile(sorted, 50) / 1e3);
+      out.printf(Locale.US, "Latency p99:     %.2f us%n", percentile(sorted, 99) / 1e3);
+      out.printf(Locale.US, "Latency max:     %.2f us%n", sorted[sorted.length - 1] / 1e3);
+      if (allocationUnknown) {
+        out.println("Allocation:      not supported by this JVM");
+      } else {
+        out.printf(Locale.US, "Allocation:      %.0f bytes/event%n", (double) allocated / calls);
+      }
+    }
+
+    /** Nearest-rank percentile of an ascending array. */
+    private static long percentile(long[] sorted, double percentile) {
+      int rank = (int) Math.ceil(sorted.length * percentile / 100);
+      return sorted[Math.max(0, rank - 1)];
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.content.ComponentName;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the manifest label of each activity, so that {@link PackageManager} is only queried the
+ * first time an activity is resumed, or not at all if the cache was {@link #prewarm prewarmed}.
+ */
+class ActivityLabelCache {
+
+  private final ConcurrentHashMap<ComponentName, String> labels = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the label for {@code component}, resolving and caching it on a miss.
+   *
+   * @throws PackageManager.NameNotFoundException if the activity is not in the package manifest.
+   */
+  String get(PackageManager packageManager, ComponentName component)
+      throws PackageManager.NameNotFoundException {
+    String label = labels.get(component);
+    if (label == null) {
+      ActivityInfo info = packageManager.getActivityInfo(component, PackageManager.GET_META_DATA);
+      label = info.loadLabel(packageManager).toString();
+      labels.put(component, label);
+    }
+    return label;
+  }
+
+  /** Resolves the labels of all activities declared by {@code packageName}. */
+  void prewarm(PackageManager packageManager, String packageName)
+      throws PackageManager.NameNotFoundException {
+    PackageInfo packageInfo =
+        packageManager.getPackageInfo(packageName, PackageManager.GET_ACTIVITIES);
+    if (packageInfo.activities == null) {
+      return;
+    }
+    for (ActivityInfo info : packageInfo.activities) {
+      ComponentName component = new ComponentName(info.packageName, info.name);
+      if (!labels.containsKey(component)) {
+        labels.put(component, info.loadLabel(packageManager).toString());
+      }
+    }
+  }
+
+  int size() {
+    return labels.size();
+  }
+
+  void clear() {
+    labels.clear();
+  }
+}
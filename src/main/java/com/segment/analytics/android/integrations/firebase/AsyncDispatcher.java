@@ -0,0 +1,203 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.os.Looper;
+import android.os.Process;
+
+import com.segment.analytics.android.integrations.firebase.FirebaseIntegration.OverflowPolicy;
+import com.segment.analytics.integrations.Logger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import static com.segment.analytics.internal.Utils.THREAD_PREFIX;
+
+/**
+ * Runs tasks on a single background thread, in the order they were dispatched. The pending queue
+ * is bounded; what happens when it is full is decided by the {@link OverflowPolicy}.
+ *
+ * <p>Segment delivers calls on the main thread, so waiting for room in the queue or in {@link
+ * #flush()} is bounded there by {@link #MAIN_THREAD_WAIT_MILLIS}, well below the ANR timeout.
+ */
+class AsyncDispatcher {
+
+  /** Longest the main thread waits for the queue, in milliseconds. */
+  static final long MAIN_THREAD_WAIT_MILLIS = 1000;
+  private static final long MAIN_THREAD_WAIT_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(MAIN_THREAD_WAIT_MILLIS);
+
+  private final Object lock = new Object();
+  private final ArrayDeque<Runnable> queue;
+  private final int capacity;
+  private final OverflowPolicy overflowPolicy;
+  private final Logger logger;
+  private final FirebaseMetrics metrics;
+  private final Thread thread;
+
+  // Guarded by lock. Dropped tasks count as completed so that flush() never waits on them.
+  private long submitted;
+  private long completed;
+  private long dropped;
+
+  /** @param metrics where dropped calls are counted, or {@code null}. */
+  AsyncDispatcher(
+      int capacity, OverflowPolicy overflowPolicy, Logger logger, FirebaseMetrics metrics) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity <= 0");
+    }
+    this.queue = new ArrayDeque<>(capacity);
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.logger = logger;
+    this.metrics = metrics;
+    this.thread =
+        new Thread(THREAD_PREFIX + "Firebase-Dispatcher") {
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            loop();
+          }
+        };
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /** Queues {@code task}, applying the overflow policy if the queue is full. */
+  void dispatch(Runnable task) {
+    if (!enqueue(task)) {
+      logger.debug("Dispatch queue full, dropped a call to Firebase.");
+      if (metrics != null) {
+        metrics.increment(FirebaseMetrics.Counter.CALLS_DROPPED);
+      }
+    }
+  }
+
+  /** Returns {@code false} if {@code task} or an older task was dropped to honour the capacity. */
+  private boolean enqueue(Runnable task) {
+    boolean droppedAny = false;
+    boolean bounded = overflowPolicy == OverflowPolicy.BLOCK && isMainThread();
+    long deadline = bounded ? System.nanoTime() + MAIN_THREAD_WAIT_NANOS : 0;
+    synchronized (lock) {
+      while (queue.size() >= capacity) {
+        switch (overflowPolicy) {
+          case DROP_NEWEST:
+            dropped++;
+            return false;
+          case DROP_OLDEST:
+            queue.poll();
+            dropped++;
+            completed++;
+            droppedAny = true;
+            lock.notifyAll();
+            break;
+          case BLOCK:
+            try {
+              if (!await(bounded, deadline)) {
+                dropped++;
+                return false;
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              dropped++;
+              return false;
+            }
+            break;
+          default:
+            throw new AssertionError("Unknown overflow policy: " + overflowPolicy);
+        }
+      }
+      queue.add(task);
+      submitted++;
+      lock.notifyAll();
+    }
+    return !droppedAny;
+  }
+
+  /**
+   * Blocks until every task dispatched before this call has run or been dropped. Returns
+   * immediately when called from the dispatcher thread itself, and after at most {@link
+   * #MAIN_THREAD_WAIT_MILLIS} on the main thread; tasks still queued then are sent later.
+   */
+  void flush() {
+    if (Thread.currentThread() == thread) {
+      return;
+    }
+    boolean bounded = isMainThread();
+    long deadline = bounded ? System.nanoTime() + MAIN_THREAD_WAIT_NANOS : 0;
+    synchronized (lock) {
+      long target = submitted;
+      while (completed < target) {
+        try {
+          if (!await(bounded, deadline)) {
+            return;
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits on {@code lock}, which must be held, until notified or, if {@code bounded}, until {@code
+   * deadline}. Returns {@code false} without waiting once the deadline has passed.
+   */
+  private boolean await(boolean bounded, long deadline) throws InterruptedException {
+    if (!bounded) {
+      lock.wait();
+      return true;
+    }
+    long remaining = deadline - System.nanoTime();
+    if (remaining <= 0) {
+      return false;
+    }
+    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+    return true;
+  }
+
+  /** Whether the caller is the main thread. False on a plain JVM, where there is no main looper. */
+  private static boolean isMainThread() {
+    Looper mainLooper = Looper.getMainLooper();
+    return mainLooper != null && mainLooper.getThread() == Thread.currentThread();
+  }
+
+  long droppedCount() {
+    synchronized (lock) {
+      return dropped;
+    }
+  }
+
+  int pendingCount() {
+    synchronized (lock) {
+      return queue.size();
+    }
+  }
+
+  private void loop() {
+    while (true) {
+      Runnable task;
+      synchronized (lock) {
+        while (queue.isEmpty()) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        task = queue.poll();
+        // Wakes producers blocked on a full queue.
+        lock.notifyAll();
+      }
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        logger.error(e, "Error dispatching to Firebase.");
+      } finally {
+        synchronized (lock) {
+          completed++;
+          lock.notifyAll();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session-constant properties, sent to Firebase once as default event parameters instead of with
+ * every event. Properties are hoisted when they are configured as constant, or, if detection is
+ * enabled, once they have had the same value in enough consecutive events. A hoisted property is
+ * stripped from events where it has its default value. An event with another value keeps it, so
+ * it is never logged under a default set concurrently for a different value; the value becomes
+ * the new default of a configured property, and a detected property stops being hoisted.
+ *
+ * <p>Checking a property is lock-free once its state is settled: hoisted and rejected properties
+ * cost one or two map lookups per event.
+ */
+final class DefaultParameters {
+
+  /** Stands in for {@code null} values, which concurrent maps cannot hold. */
+  private static final Object NULL = new Object();
+  /** Value returned by {@link #takeChanged()} for a property to remove from the defaults. */
+  static final Object REMOVED = new Object();
+  /** Candidate state for a property whose value changed, so it is never detected as constant. */
+  private static final Candidate REJECTED = new Candidate(NULL, 0);
+  /** Properties tracked for detection at most; later properties are not considered. */
+  private static final int MAX_CANDIDATES = 256;
+
+  private final Set<String> configured;
+  private final Set<String> excluded;
+  private final int detectAfter;
+  /** Segment property name to its current default value. */
+  private final ConcurrentHashMap<String, Object> hoisted = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Candidate> candidates = new ConcurrentHashMap<>();
+  /**
+   * Detected properties that stopped being hoisted. They are removed from the defaults every time
+   * those are sent, in case an earlier removal was dropped.
+   */
+  private final Set<String> demoted =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private volatile boolean changed;
+
+  /**
+   * @param configured Segment properties that are always hoisted.
+   * @param excluded Segment properties that are never detected as constant.
+   * @param detectAfter consecutive identical values after which a property is hoisted, or 0 to
+   *     disable detection.
+   */
+  DefaultParameters(Set<String> configured, Set<String> excluded, int detectAfter) {
+    this.configured = configured;
+    this.excluded = excluded;
+    this.detectAfter = detectAfter;
+  }
+
+  /**
+   * Returns {@code true} if {@code key} is hoisted with {@code value} as its default, and should be
+   * left out of the event. Otherwise the event keeps it, and the defaults are marked for sending
+   * again if {@code value} changed a configured property or demoted a detected one.
+   */
+  boolean absorb(String key, Object value) {
+    Object wrapped = value == null ? NULL : value;
+    Object current = hoisted.get(key);
+    if (current != null) {
+      if (current.equals(wrapped)) {
+        return true;
+      }
+      if (configured.contains(key)) {
+        if (hoisted.replace(key, current, wrapped)) {
+          changed = true;
+        }
+      } else if (hoisted.remove(key, current)) {
+        candidates.put(key, REJECTED);
+        demoted.add(key);
+        changed = true;
+      }
+      return false;
+    }
+    if (configured.contains(key)) {
+      update(key, wrapped);
+      return true;
+    }
+    return detectAfter > 0 && detect(key, wrapped);
+  }
+
+  /** Returns {@code true} if this call made {@code key} constant enough to hoist. */
+  private boolean detect(String key, Object value) {
+    if (excluded.contains(key) || !isScalar(value)) {
+      return false;
+    }
+    Candidate candidate = candidates.get(key);
+    if (candidate == REJECTED) {
+      return false;
+    }
+    if (candidate != null && !candidate.value.equals(value)) {
+      candidates.put(key, REJECTED);
+      return false;
+    }
+    int streak = candidate == null ? 1 : candidate.streak + 1;
+    if (streak < detectAfter) {
+      if (candidate == null) {
+        if (candidates.size() < MAX_CANDIDATES) {
+          candidates.putIfAbsent(key, new Candidate(value, streak));
+        }
+      } else {
+        candidates.replace(key, candidate, new Candidate(value, streak));
+      }
+      return false;
+    }
+    candidates.remove(key);
+    update(key, value);
+    return true;
+  }
+
+  private void update(String key, Object value) {
+    hoisted.put(key, value);
+    changed = true;
+  }
+
+  /**
+   * Returns every hoisted property and its value if any changed since the last call, or {@code
+   * null} if nothing changed. Demoted properties map to {@link #REMOVED}.
+   */
+  Map<String, Object> takeChanged() {
+    if (!changed) {
+      return null;
+    }
+    synchronized (this) {
+      if (!changed) {
+        return null;
+      }
+      changed = false;
+      Map<String, Object> values = new HashMap<>(hoisted.size() + demoted.size());
+      for (String key : demoted) {
+        values.put(key, REMOVED);
+      }
+      for (Map.Entry<String, Object> entry : hoisted.entrySet()) {
+        values.put(entry.getKey(), entry.getValue() == NULL ? null : entry.getValue());
+      }
+      return Collections.unmodifiableMap(values);
+    }
+  }
+
+  /** Marks the defaults for sending again, for when the last ones were never sent. */
+  void markChanged() {
+    changed = true;
+  }
+
+  /** Forgets every hoisted and detected property. */
+  void clear() {
+    hoisted.clear();
+    candidates.clear();
+    demoted.clear();
+    changed = false;
+  }
+
+  private static boolean isScalar(Object value) {
+    return value instanceof String || value instanceof Number || value instanceof Boolean;
+  }
+
+  private static final class Candidate {
+
+    final Object value;
+    final int streak;
+
+    Candidate(Object value, int streak) {
+      this.value = value;
+      this.streak = streak;
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+import com.segment.analytics.integrations.Logger;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+
+/**
+ * Holds calls made before the real sink exists, and replays them in order once it is handed over
+ * with {@link #ready(FirebaseSink)}. At most {@code capacity} calls are held; later ones are
+ * dropped until the sink is ready. Buffered screens hold their activity weakly, and are skipped if
+ * it is collected before they are replayed. Calls that change state Firebase keeps are reported to
+ * the {@link Listener} when they are dropped, so the caller can stop assuming they were sent.
+ */
+class DeferredSink implements FirebaseSink {
+
+  /** Told about dropped calls that would have changed state Firebase keeps. */
+  interface Listener {
+
+    void userIdDropped();
+
+    void userPropertyDropped(String name);
+
+    void defaultEventParametersDropped();
+  }
+
+  /** A buffered call, replayed against the real sink. */
+  private abstract static class Call {
+
+    abstract void replay(FirebaseSink sink);
+
+    /** Reports that this call will never reach the real sink. */
+    void dropped(Listener listener) {}
+  }
+
+  private final Object lock = new Object();
+  private final int capacity;
+  private final Logger logger;
+  private final FirebaseMetrics metrics;
+
+  // Guarded by lock. The delegate is only published once the buffer has been replayed, so calls
+  // that see it can skip the lock.
+  private final ArrayDeque<Call> buffer;
+  private volatile FirebaseSink delegate;
+  private boolean discarded;
+  private volatile Listener listener;
+
+  /** @param metrics where dropped calls are counted, or {@code null}. */
+  DeferredSink(int capacity, Logger logger, FirebaseMetrics metrics) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity <= 0");
+    }
+    this.capacity = capacity;
+    this.logger = logger;
+    this.metrics = metrics;
+    this.buffer = new ArrayDeque<>(capacity);
+  }
+
+  /**
+   * Replays the buffered calls against {@code sink}, then forwards every later call to it directly.
+   * Calls made while the buffer is replayed are buffered and replayed after it, so order is kept.
+   * Call this on the main thread: Firebase ignores setCurrentScreen anywhere else.
+   */
+  void ready(FirebaseSink sink) {
+    while (true) {
+      Call[] calls;
+      synchronized (lock) {
+        if (buffer.isEmpty()) {
+          delegate = sink;
+          return;
+        }
+        calls = buffer.toArray(new Call[buffer.size()]);
+        buffer.clear();
+      }
+      for (Call call : calls) {
+        try {
+          call.replay(sink);
+        } catch (RuntimeException e) {
+          logger.error(e, "Error replaying a call to Firebase.");
+        }
+      }
+    }
+  }
+
+  void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Drops the buffered calls and every later call, for when the real sink cannot be created. */
+  void discard() {
+    Call[] calls;
+    synchronized (lock) {
+      discarded = true;
+      calls = buffer.toArray(new Call[buffer.size()]);
+      buffer.clear();
+    }
+    for (Call call : calls) {
+      dropped(call);
+    }
+  }
+
+  private void dropped(Call call) {
+    Listener listener = this.listener;
+    if (listener != null) {
+      call.dropped(listener);
+    }
+  }
+
+  int pendingCount() {
+    synchronized (lock) {
+      return buffer.size();
+    }
+  }
+
+  /**
+   * Returns the real sink, or buffers {@code call} and returns {@code null} if not ready. Returns
+   * {@code null} as well if the call is dropped.
+   */
+  private FirebaseSink sinkOrBuffer(Call call) {
+    boolean discarded;
+    synchronized (lock) {
+      if (delegate != null) {
+        return delegate;
+      }
+      discarded = this.discarded;
+      if (!discarded && buffer.size() < capacity) {
+        buffer.add(call);
+        return null;
+      }
+    }
+    dropped(call);
+    if (discarded) {
+      return null;
+    }
+    logger.debug("Firebase is not ready and its buffer is full, dropped a call.");
+    if (metrics != null) {
+      metrics.increment(FirebaseMetrics.Counter.CALLS_DROPPED);
+    }
+    return null;
+  }
+
+  @Override
+  public void logEvent(final String name, final Bundle params) {
+    FirebaseSink sink = delegate;
+    if (sink == null) {
+      sink =
+          sinkOrBuffer(
+              new Call() {
+                @Override
+                void replay(FirebaseSink sink) {
+                  sink.logEvent(name, params);
+                }
+              });
+      if (sink == null) {
+        return;
+      }
+    }
+    sink.logEvent(name, params);
+  }
+
+  @Override
+  public void setUserProperty(final String name, final String value) {
+    FirebaseSink sink = delegate;
+    if (sink == null) {
+      sink =
+          sinkOrBuffer(
+              new Call() {
+                @Override
+                void replay(FirebaseSink sink) {
+                  sink.setUserProperty(name, value);
+                }
+
+                @Override
+                void dropped(Listener listener) {
+                  listener.userPropertyDropped(name);
+                }
+              });
+      if (sink == null) {
+        return;
+      }
+    }
+    sink.setUserProperty(name, value);
+  }
+
+  @Override
+  public void setUserId(final String id) {
+    FirebaseSink sink = delegate;
+    if (sink == null) {
+      sink =
+          sinkOrBuffer(
+              new Call() {
+                @Override
+                void replay(FirebaseSink sink) {
+                  sink.setUserId(id);
+                }
+
+                @Override
+                void dropped(Listener listener) {
+                  listener.userIdDropped();
+                }
+              });
+      if (sink == null) {
+        return;
+      }
+    }
+    sink.setUserId(id);
+  }
+
+  @Override
+  public void setCurrentScreen(
+      Activity activity, final String screenName, final String screenClassOverride) {
+    FirebaseSink sink = delegate;
+    if (sink == null) {
+      final WeakReference<Activity> activityReference = new WeakReference<>(activity);
+      sink =
+          sinkOrBuffer(
+              new Call() {
+                @Override
+                void replay(FirebaseSink sink) {
+                  Activity activity = activityReference.get();
+                  if (activity != null) {
+                    sink.setCurrentScreen(activity, screenName, screenClassOverride);
+                  }
+                }
+              });
+      if (sink == null) {
+        return;
+      }
+    }
+    sink.setCurrentScreen(activity, screenName, screenClassOverride);
+  }
+
+  @Override
+  public void setDefaultEventParameters(final Bundle params) {
+    FirebaseSink sink = delegate;
+    if (sink == null) {
+      sink =
+          sinkOrBuffer(
+              new Call() {
+                @Override
+                void replay(FirebaseSink sink) {
+                  sink.setDefaultEventParameters(params);
+                }
+
+                @Override
+                void dropped(Listener listener) {
+                  listener.defaultEventParametersDropped();
+                }
+              });
+      if (sink == null) {
+        return;
+      }
+    }
+    sink.setDefaultEventParameters(params);
+  }
+}
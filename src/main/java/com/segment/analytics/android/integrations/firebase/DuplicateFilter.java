@@ -0,0 +1,141 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Suppresses track calls identical to one seen shortly before. Calls are compared by a 64-bit
+ * fingerprint of the event name and properties, computed without formatting anything.
+ *
+ * <p>Fingerprints live in a fixed-size open-addressed table, so memory use is constant no matter
+ * how many distinct events are tracked. When every slot a fingerprint may occupy is taken, the
+ * oldest one is replaced; at worst that lets a duplicate through. The table is split into stripes,
+ * each with its own lock, so concurrent callers rarely contend.
+ */
+final class DuplicateFilter {
+
+  /** Number of consecutive slots a fingerprint may occupy. */
+  private static final int PROBES = 4;
+  private static final int STRIPES = 16;
+
+  private final Object[] locks = new Object[STRIPES];
+  private final int stripeSize;
+  private final int stripeMask;
+  private final boolean[] occupied;
+  private final long[] fingerprints;
+  private final long[] seenAt;
+
+  /**
+   * @param capacity number of fingerprints remembered; must be a power of two of at least {@value
+   *     #STRIPES} * {@value #PROBES}.
+   */
+  DuplicateFilter(int capacity) {
+    if (capacity < STRIPES * PROBES || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two of at least 64.");
+    }
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new Object();
+    }
+    this.stripeSize = capacity / STRIPES;
+    this.stripeMask = stripeSize - 1;
+    this.occupied = new boolean[capacity];
+    this.fingerprints = new long[capacity];
+    this.seenAt = new long[capacity];
+  }
+
+  /** Number of fingerprints remembered. */
+  int size() {
+    int size = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      synchronized (locks[stripe]) {
+        for (int slot = stripe * stripeSize; slot < (stripe + 1) * stripeSize; slot++) {
+          if (occupied[slot]) {
+            size++;
+          }
+        }
+      }
+    }
+    return size;
+  }
+
+  /** Forgets every fingerprint, so no event is suppressed until it is seen again. */
+  void clear() {
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      synchronized (locks[stripe]) {
+        Arrays.fill(occupied, stripe * stripeSize, (stripe + 1) * stripeSize, false);
+      }
+    }
+  }
+
+  /**
+   * Returns {@code true} if {@code fingerprint} was first seen less than {@code windowNanos} before
+   * {@code nowNanos}. Otherwise records it as seen at {@code nowNanos} and returns {@code false}.
+   */
+  boolean isDuplicate(long fingerprint, long nowNanos, long windowNanos) {
+    int stripe = (int) (fingerprint >>> 32) & (STRIPES - 1);
+    int base = stripe * stripeSize;
+    int start = (int) fingerprint & stripeMask;
+    synchronized (locks[stripe]) {
+      int victim = base + start;
+      for (int i = 0; i < PROBES; i++) {
+        int slot = base + ((start + i) & stripeMask);
+        if (!occupied[slot]) {
+          // Slots are only emptied all together, so the fingerprint cannot be further along.
+          victim = slot;
+          break;
+        }
+        if (fingerprints[slot] == fingerprint) {
+          if (nowNanos - seenAt[slot] < windowNanos) {
+            return true;
+          }
+          victim = slot;
+          break;
+        }
+        if (seenAt[slot] - seenAt[victim] < 0) {
+          victim = slot;
+        }
+      }
+      occupied[victim] = true;
+      fingerprints[victim] = fingerprint;
+      seenAt[victim] = nowNanos;
+      return false;
+    }
+  }
+
+  /**
+   * Fingerprints an event and its properties. Equal maps have equal fingerprints regardless of
+   * iteration order; nested maps and lists are walked recursively.
+   */
+  static long fingerprint(String event, Map<?, ?> properties) {
+    return mix(event.hashCode()) * 31 + hash(properties);
+  }
+
+  private static long hash(Object value) {
+    if (value instanceof Map) {
+      long hash = 0;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        hash += mix(hash(entry.getKey()) * 0x9e3779b97f4a7c15L + hash(entry.getValue()));
+      }
+      return hash;
+    }
+    if (value instanceof List) {
+      long hash = 1;
+      for (Object item : (List<?>) value) {
+        hash = hash * 31 + hash(item);
+      }
+      return mix(hash);
+    }
+    return value == null ? 0 : mix(value.hashCode());
+  }
+
+  /** Murmur3 64-bit finalizer. */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,37 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import java.util.Set;
+
+/**
+ * The compiled mapping for a single Segment event: the Firebase event name it is logged as, and
+ * the destination key for each of its properties. A plan is compiled the first time an event is
+ * tracked and reused for every later call.
+ */
+final class EventPlan {
+
+  final String eventName;
+  final KeyPlan properties;
+  /** The only source properties forwarded for this event, or {@code null} for all of them. */
+  final Set<String> propertyAllowlist;
+  /** Whether the event is configured to never be forwarded. */
+  final boolean dropped;
+  /** Sampling or rate limiting applied before the event is formatted. */
+  final EventPolicy policy;
+  /** How long identical calls are suppressed after this event is tracked, in nanoseconds. */
+  final long dedupWindow;
+
+  EventPlan(
+      String eventName,
+      KeyPlan properties,
+      Set<String> propertyAllowlist,
+      boolean dropped,
+      EventPolicy policy,
+      long dedupWindow) {
+    this.eventName = eventName;
+    this.properties = properties;
+    this.propertyAllowlist = propertyAllowlist;
+    this.dropped = dropped;
+    this.policy = policy;
+    this.dedupWindow = dedupWindow;
+  }
+}
@@ -0,0 +1,152 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.firebase.FirebaseMetrics.Counter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a tracked event is forwarded to Firebase. Policies are checked before any
+ * parameters are formatted, so rejected events cost almost nothing.
+ *
+ * <pre>
+ * { "sampleRate": 0.1 }                 forward events from 10% of anonymous IDs
+ * { "maxPerSecond": 2, "burst": 10 }    token bucket rate limit
+ * {}                                    always forward
+ * </pre>
+ */
+abstract class EventPolicy {
+
+  static final EventPolicy ALWAYS =
+      new EventPolicy() {
+        @Override
+        boolean allow(String anonymousId) {
+          return true;
+        }
+
+        @Override
+        Counter rejectedCounter() {
+          return null;
+        }
+      };
+
+  private static final String SAMPLE_RATE_KEY = "sampleRate";
+  private static final String MAX_PER_SECOND_KEY = "maxPerSecond";
+  private static final String BURST_KEY = "burst";
+
+  /** Returns {@code true} if an event from {@code anonymousId} should be forwarded. */
+  abstract boolean allow(String anonymousId);
+
+  /**
+   * The counter incremented when this policy rejects an event, or {@code null} for a policy that
+   * never rejects.
+   */
+  abstract Counter rejectedCounter();
+
+  /** Compiles a policy from its settings; {@link #ALWAYS} if none of the keys are present. */
+  static EventPolicy compile(ValueMap config) {
+    if (config.containsKey(SAMPLE_RATE_KEY)) {
+      return new Sampler(config.getDouble(SAMPLE_RATE_KEY, 1));
+    }
+    if (config.containsKey(MAX_PER_SECOND_KEY)) {
+      double maxPerSecond = config.getDouble(MAX_PER_SECOND_KEY, 0);
+      return new TokenBucket(maxPerSecond, config.getDouble(BURST_KEY, Math.max(1, maxPerSecond)));
+    }
+    return ALWAYS;
+  }
+
+  /**
+   * Forwards events from a fixed fraction of anonymous IDs. The decision is a pure function of the
+   * anonymous ID, so a user is either always or never sampled in.
+   */
+  static final class Sampler extends EventPolicy {
+
+    private final long threshold;
+
+    Sampler(double rate) {
+      double clamped = Math.max(0, Math.min(rate, 1));
+      // Compare against the top 31 bits of the mixed hash, as a non-negative int.
+      this.threshold = (long) (clamped * (1L << 31));
+    }
+
+    @Override
+    boolean allow(String anonymousId) {
+      if (anonymousId == null) {
+        return threshold > 0;
+      }
+      return (mix(anonymousId.hashCode()) >>> 1) < threshold;
+    }
+
+    @Override
+    Counter rejectedCounter() {
+      return Counter.EVENTS_SAMPLED_OUT;
+    }
+
+    /** Murmur3 finalizer, so that similar IDs land far apart. */
+    private static int mix(int h) {
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return h;
+    }
+  }
+
+  /**
+   * Forwards at most {@code burst} events at once, refilled at {@code maxPerSecond}. Lock-free: the
+   * bucket is kept as the time at which it will next be full (the generic cell rate algorithm), and
+   * updated with a compare-and-set. Without a refill rate, it is a count of the tokens left.
+   */
+  static final class TokenBucket extends EventPolicy {
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    /** When refilling, the time the bucket is full again; otherwise the tokens left. */
+    private final AtomicLong state;
+
+    TokenBucket(double maxPerSecond, double burst) {
+      long capacity = (long) Math.max(1, burst);
+      if (maxPerSecond > 0) {
+        this.intervalNanos = Math.max(1, (long) (1e9 / maxPerSecond));
+        this.toleranceNanos = (capacity - 1) * intervalNanos;
+        this.state = new AtomicLong(System.nanoTime());
+      } else {
+        this.intervalNanos = 0;
+        this.toleranceNanos = 0;
+        this.state = new AtomicLong(capacity);
+      }
+    }
+
+    @Override
+    boolean allow(String anonymousId) {
+      if (intervalNanos == 0) {
+        while (true) {
+          long tokens = state.get();
+          if (tokens <= 0) {
+            return false;
+          }
+          if (state.compareAndSet(tokens, tokens - 1)) {
+            return true;
+          }
+        }
+      }
+      long now = System.nanoTime();
+      while (true) {
+        long full = state.get();
+        long start = full - now > 0 ? full : now;
+        if (start - now > toleranceNanos) {
+          return false;
+        }
+        if (state.compareAndSet(full, start + intervalNanos)) {
+          return true;
+        }
+      }
+    }
+
+    @Override
+    Counter rejectedCounter() {
+      return Counter.EVENTS_RATE_LIMITED;
+    }
+  }
+}
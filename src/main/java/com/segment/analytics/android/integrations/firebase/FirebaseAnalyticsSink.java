@@ -0,0 +1,41 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+import com.google.firebase.analytics.FirebaseAnalytics;
+
+/** A {@link FirebaseSink} that forwards every call to {@link FirebaseAnalytics}. */
+class FirebaseAnalyticsSink implements FirebaseSink {
+
+  private final FirebaseAnalytics firebaseAnalytics;
+
+  FirebaseAnalyticsSink(FirebaseAnalytics firebaseAnalytics) {
+    this.firebaseAnalytics = firebaseAnalytics;
+  }
+
+  @Override
+  public void logEvent(String name, Bundle params) {
+    firebaseAnalytics.logEvent(name, params);
+  }
+
+  @Override
+  public void setUserProperty(String name, String value) {
+    firebaseAnalytics.setUserProperty(name, value);
+  }
+
+  @Override
+  public void setUserId(String id) {
+    firebaseAnalytics.setUserId(id);
+  }
+
+  @Override
+  public void setCurrentScreen(Activity activity, String screenName, String screenClassOverride) {
+    firebaseAnalytics.setCurrentScreen(activity, screenName, screenClassOverride);
+  }
+
+  @Override
+  public void setDefaultEventParameters(Bundle params) {
+    firebaseAnalytics.setDefaultEventParameters(params);
+  }
+}
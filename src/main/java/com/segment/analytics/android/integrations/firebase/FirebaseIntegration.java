@@ -2,14 +2,20 @@ package com.segment.analytics.android.integrations.firebase;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.content.pm.ActivityInfo;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 
 import com.google.firebase.analytics.FirebaseAnalytics;
 import com.google.firebase.analytics.FirebaseAnalytics.Event;
 import com.google.firebase.analytics.FirebaseAnalytics.Param;
+import com.segment.analytics.android.integrations.firebase.FirebaseMetrics.Timer;
 import com.segment.analytics.Analytics;
 import com.segment.analytics.Properties;
 import com.segment.analytics.ValueMap;
@@ -19,13 +25,22 @@ import com.segment.analytics.integrations.Logger;
 import com.segment.analytics.integrations.TrackPayload;
 import com.segment.analytics.integrations.ScreenPayload;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.segment.analytics.internal.Utils.THREAD_PREFIX;
 import static com.segment.analytics.internal.Utils.hasPermission;
 import static com.segment.analytics.internal.Utils.isNullOrEmpty;
+import static com.segment.analytics.internal.Utils.toISO8601Date;
 
 /**
  * Google Analytics for Firebase is a free app measurement solution that provides insight on app
@@ -37,37 +52,111 @@ import static com.segment.analytics.internal.Utils.isNullOrEmpty;
  */
 public class FirebaseIntegration extends Integration<FirebaseAnalytics> {
 
-  public static final Factory FACTORY =
-      new Factory() {
-        @Override
-        public Integration<?> create(ValueMap settings, Analytics analytics) {
-          Logger logger = analytics.logger(FIREBASE_ANALYTICS_KEY);
-          if (!hasPermission(
-              analytics.getApplication(), Manifest.permission.ACCESS_NETWORK_STATE)) {
-            logger.debug("ACCESS_NETWORK_STATE is required for Firebase Analytics.");
-            return null;
-          }
-          if (!hasPermission(analytics.getApplication(), Manifest.permission.WAKE_LOCK)) {
-            logger.debug("WAKE_LOCK is required for Firebase Analytics.");
-            return null;
-          }
-
-          Context context = analytics.getApplication();
+  public static final Factory FACTORY = factory(new Options.Builder().build());
 
-          return new FirebaseIntegration(context, logger);
+  /** Returns a factory that creates integrations configured with {@code options}. */
+  public static Factory factory(final Options options) {
+    return new Factory() {
+      @Override
+      public Integration<?> create(ValueMap settings, Analytics analytics) {
+        Logger logger = analytics.logger(FIREBASE_ANALYTICS_KEY);
+        Context context = analytics.getApplication();
+        // With deferred initialization, permissions are checked on the initialization thread. A
+        // custom sink doesn't need them.
+        if (options.sink == null
+            && options.deferredCallCapacity == 0
+            && !hasRequiredPermissions(context, logger)) {
+          return null;
         }
 
-        @Override
-        public String key() {
-          return FIREBASE_ANALYTICS_KEY;
-        }
-      };
+        final FirebaseIntegration integration =
+            new FirebaseIntegration(context, logger, options, FirebaseSettings.compile(settings));
+        context.registerComponentCallbacks(
+            new ComponentCallbacks2() {
+              @Override
+              public void onTrimMemory(int level) {
+                integration.trimMemory(level);
+              }
+
+              @Override
+              public void onLowMemory() {
+                integration.trimMemory(TRIM_MEMORY_COMPLETE);
+              }
+
+              @Override
+              public void onConfigurationChanged(Configuration newConfig) {}
+            });
+        return integration;
+      }
+
+      @Override
+      public String key() {
+        return FIREBASE_ANALYTICS_KEY;
+      }
+    };
+  }
+
+  private static boolean hasRequiredPermissions(Context context, Logger logger) {
+    if (!hasPermission(context, Manifest.permission.ACCESS_NETWORK_STATE)) {
+      logger.debug("ACCESS_NETWORK_STATE is required for Firebase Analytics.");
+      return false;
+    }
+    if (!hasPermission(context, Manifest.permission.WAKE_LOCK)) {
+      logger.debug("WAKE_LOCK is required for Firebase Analytics.");
+      return false;
+    }
+    return true;
+  }
 
   private static final String FIREBASE_ANALYTICS_KEY = "Firebase";
+  private static final String REVENUE_KEY = "revenue";
+  private static final String TOTAL_KEY = "total";
+  private static final String VALUE_KEY = "value";
+  private static final String PREFERENCES_NAME = "analytics-android-integration-firebase";
+  static final int MAX_KEY_LENGTH = 40;
+  private static final int KEY_CACHE_SIZE = 512;
+  /** Lock-free, so concurrent callers never contend on it; emptied whenever it fills up. */
+  private static final ConcurrentHashMap<String, String> KEY_CACHE = new ConcurrentHashMap<>();
+  private static volatile int keyCacheSize = KEY_CACHE_SIZE;
+  private static final int MAX_EVENT_PLANS = 256;
+  private static final int MAX_PLANNED_KEYS = 128;
+  // Limits while trimmed for memory.
+  private static final int TRIMMED_KEY_CACHE_SIZE = 64;
+  private static final int TRIMMED_EVENT_PLANS = 32;
+  private static final int TRIMMED_PLANNED_KEYS = 16;
+  private static final int DEDUP_TABLE_SIZE = 256;
   private final Logger logger;
-  private final FirebaseAnalytics firebaseAnalytics;
-  private static final Map<String, String> EVENT_MAPPER = createEventMap();
-  private Activity currentActivity;
+  /** Cached from the logger, so disabled logging costs neither arguments nor formatting. */
+  private final boolean verbose;
+  /** Log every nth event at debug level, or 0 to not sample. Always 0 when verbose. */
+  private final int debugSampleRate;
+  private final AtomicLong debugSampleCount = new AtomicLong();
+  private final FirebaseSink sink;
+  /** Buffers calls until FirebaseAnalytics is created, if initialization is deferred. */
+  private final DeferredSink deferredSink;
+  private final ConcurrentHashMap<String, EventPlan> eventPlans = new ConcurrentHashMap<>();
+  private final KeyPlan productKeys;
+  private final UserPropertySnapshot userProperties;
+  private final ActivityLabelCache activityLabels = new ActivityLabelCache();
+  private final AsyncDispatcher dispatcher;
+  private final FirebaseMetrics metrics;
+  private final FirebaseSettings settings;
+  /** Only created when an event has a dedup window. */
+  private final DuplicateFilter duplicates;
+  private final int flattenDepth;
+  /** Only created when constant properties are configured or detected. */
+  private final DefaultParameters defaultParameters;
+  private final KeyPlan defaultParameterKeys;
+  static final Map<String, String> EVENT_MAPPER = createEventMap();
+  private final boolean logScreenViews;
+  /** Whether caches are kept small because the system asked to trim memory. */
+  private volatile boolean trimmed;
+  /** The last started activity, held weakly so a missed stop cannot leak it. */
+  private volatile WeakReference<Activity> currentActivity;
+  private final Object screenLock = new Object();
+  // Guarded by screenLock. The last screen sent, to skip sending it again.
+  private String lastScreenName;
+  private WeakReference<Activity> lastScreenActivity;
 
   private static Map<String, String> createEventMap() {
     Map<String, String> EVENT_MAPPER = new HashMap<>();
@@ -86,7 +175,7 @@ public class FirebaseIntegration extends Integration<FirebaseAnalytics> {
     return EVENT_MAPPER;
   }
 
-  private static final Map<String, String> PROPERTY_MAPPER = createPropertyMap();
+  static final Map<String, String> PROPERTY_MAPPER = createPropertyMap();
 
   private static Map<String, String> createPropertyMap() {
     Map<String, String> PROPERTY_MAPPER = new HashMap<>();
@@ -106,7 +195,7 @@ public class FirebaseIntegration extends Integration<FirebaseAnalytics> {
     return PROPERTY_MAPPER;
   }
 
-  private static final Map<String, String> PRODUCT_MAPPER = createProductMap();
+  static final Map<String, String> PRODUCT_MAPPER = createProductMap();
 
   private static Map<String, String> createProductMap() {
     Map<String, String> MAPPER = new HashMap<>();
@@ -120,23 +209,223 @@ public class FirebaseIntegration extends Integration<FirebaseAnalytics> {
   }
 
   public FirebaseIntegration(Context context, Logger logger) {
+    this(context, logger, new Options.Builder().build());
+  }
+
+  public FirebaseIntegration(Context context, Logger logger, Options options) {
+    this(context, logger, options, FirebaseSettings.DEFAULT);
+  }
+
+  FirebaseIntegration(Context context, Logger logger, Options options, FirebaseSettings settings) {
+    this(
+        options.sink != null
+            ? options.sink
+            : options.deferredCallCapacity > 0
+                ? new DeferredSink(options.deferredCallCapacity, logger, options.metrics)
+                : new FirebaseAnalyticsSink(FirebaseAnalytics.getInstance(context)),
+        logger,
+        options,
+        settings,
+        options.persistUserProperties
+            ? context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+            : null);
+    if (deferredSink != null) {
+      initializeInBackground(context);
+    }
+    if (options.prewarmActivityLabels) {
+      prewarmActivityLabels(context);
+    }
+  }
+
+  /**
+   * Creates an integration that sends to {@code sink} instead of Firebase, without needing a
+   * {@link Context}. User properties are never persisted, and {@code options.sink} is ignored.
+   */
+  public FirebaseIntegration(FirebaseSink sink, Logger logger, Options options) {
+    this(sink, logger, options, FirebaseSettings.DEFAULT, null);
+  }
+
+  /**
+   * @param preferences backing store for the user property snapshot, or {@code null} to keep it in
+   *     memory only.
+   */
+  FirebaseIntegration(
+      FirebaseSink sink,
+      Logger logger,
+      Options options,
+      FirebaseSettings settings,
+      SharedPreferences preferences) {
     this.logger = logger;
-    this.firebaseAnalytics = FirebaseAnalytics.getInstance(context);
+    this.verbose = logger.logLevel.ordinal() >= Analytics.LogLevel.VERBOSE.ordinal();
+    this.debugSampleRate =
+        !verbose && logger.logLevel.ordinal() >= Analytics.LogLevel.DEBUG.ordinal()
+            ? options.debugSampleRate
+            : 0;
+    this.settings = settings;
+    this.metrics = options.metrics;
+    this.flattenDepth = options.flattenDepth;
+    this.logScreenViews = options.logScreenViews;
+    this.sink = metrics == null ? sink : new TimingSink(sink, metrics);
+    this.deferredSink = sink instanceof DeferredSink ? (DeferredSink) sink : null;
+    this.productKeys = new KeyPlan(settings.productNames, MAX_PLANNED_KEYS, metrics);
+    this.userProperties = new UserPropertySnapshot(preferences);
+    this.duplicates = settings.hasDedupWindows() ? new DuplicateFilter(DEDUP_TABLE_SIZE) : null;
+    Set<String> special = specialProperties(settings.propertyNames);
+    Set<String> constant = new HashSet<>(settings.defaultEventParameters);
+    if (constant.removeAll(special)) {
+      logger.debug(
+          "Properties sent as value, currency or items stay in each event, ignoring them in %s.",
+          settings.defaultEventParameters);
+    }
+    if (!constant.isEmpty() || options.constantPropertyDetection > 0) {
+      this.defaultParameters =
+          new DefaultParameters(constant, special, options.constantPropertyDetection);
+      this.defaultParameterKeys = new KeyPlan(settings.propertyNames, MAX_PLANNED_KEYS, metrics);
+    } else {
+      this.defaultParameters = null;
+      this.defaultParameterKeys = null;
+    }
+    this.dispatcher =
+        options.dispatchQueueCapacity > 0
+            ? new AsyncDispatcher(
+                options.dispatchQueueCapacity, options.dispatchOverflowPolicy, logger, metrics)
+            : null;
+    if (deferredSink != null) {
+      deferredSink.setListener(
+          new DeferredSink.Listener() {
+            @Override
+            public void userIdDropped() {
+              userProperties.forgetUserId();
+            }
+
+            @Override
+            public void userPropertyDropped(String name) {
+              userProperties.forgetUserProperty(name);
+            }
+
+            @Override
+            public void defaultEventParametersDropped() {
+              if (defaultParameters != null) {
+                defaultParameters.markChanged();
+              }
+            }
+          });
+    }
+  }
+
+  /**
+   * Returns the properties mapped to parameters with meaning of their own in each event, which are
+   * never sent as defaults: a default currency would not apply to the event's value, and the USD
+   * fallback would override it.
+   */
+  private static Set<String> specialProperties(Map<String, String> propertyNames) {
+    // Unmapped properties keep their name.
+    Set<String> special = new HashSet<>(Arrays.asList(Param.VALUE, Param.CURRENCY, Param.ITEMS));
+    for (Map.Entry<String, String> entry : propertyNames.entrySet()) {
+      String parameter = entry.getValue();
+      if (parameter.equals(Param.VALUE)
+          || parameter.equals(Param.CURRENCY)
+          || parameter.equals(Param.ITEMS)) {
+        special.add(entry.getKey());
+      }
+    }
+    return special;
+  }
+
+  /**
+   * Checks permissions and creates FirebaseAnalytics on a background thread, then replays the calls
+   * buffered in the meantime on the main thread, where Firebase accepts setCurrentScreen. If either
+   * fails, buffered and later calls are discarded.
+   */
+  private void initializeInBackground(final Context context) {
+    Thread thread =
+        new Thread(THREAD_PREFIX + "Firebase-Init") {
+          @Override
+          public void run() {
+            if (!hasRequiredPermissions(context, logger)) {
+              discardDeferredCalls();
+              return;
+            }
+            FirebaseAnalytics firebaseAnalytics;
+            try {
+              firebaseAnalytics = FirebaseAnalytics.getInstance(context);
+            } catch (RuntimeException e) {
+              logger.error(e, "Could not initialize Firebase Analytics.");
+              discardDeferredCalls();
+              return;
+            }
+            final FirebaseSink sink = new FirebaseAnalyticsSink(firebaseAnalytics);
+            Looper mainLooper = Looper.getMainLooper();
+            if (mainLooper == null) {
+              // Not running on Android, as in the benchmarks.
+              deferredSink.ready(sink);
+              return;
+            }
+            new Handler(mainLooper)
+                .post(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        deferredSink.ready(sink);
+                      }
+                    });
+          }
+        };
+    thread.start();
+  }
+
+  /**
+   * Discards the buffered calls, and removes the user ID and user properties they would have sent
+   * from the persisted snapshot right away, so that a later process sends them again.
+   */
+  private void discardDeferredCalls() {
+    deferredSink.discard();
+    userProperties.apply();
+  }
+
+  /** Resolves all activity labels on a background thread so resumes never hit PackageManager. */
+  private void prewarmActivityLabels(Context context) {
+    final PackageManager packageManager = context.getPackageManager();
+    final String packageName = context.getPackageName();
+    Thread thread =
+        new Thread(THREAD_PREFIX + "Firebase-ActivityLabels") {
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+              activityLabels.prewarm(packageManager, packageName);
+            } catch (PackageManager.NameNotFoundException e) {
+              logger.error(e, "Could not prewarm activity labels for %s.", packageName);
+            }
+          }
+        };
+    thread.start();
   }
 
   @Override
   public void onActivityResumed(Activity activity) {
     super.onActivityResumed(activity);
 
-    PackageManager packageManager = activity.getPackageManager();
+    long start = startTiming();
+    String activityLabel;
     try {
-      ActivityInfo info =
-          packageManager.getActivityInfo(activity.getComponentName(), PackageManager.GET_META_DATA);
-      String activityLabel = info.loadLabel(packageManager).toString();
-      firebaseAnalytics.setCurrentScreen(activity, activityLabel, null);
-      logger.verbose("firebaseAnalytics.setCurrentScreen(activity, %s, null);", activityLabel);
+      activityLabel = activityLabels.get(activity.getPackageManager(), activity.getComponentName());
     } catch (PackageManager.NameNotFoundException e) {
-      throw new AssertionError("Activity Not Found: " + e.toString());
+      logger.error(e, "Activity Not Found: %s", activity.getComponentName());
+      return;
+    }
+    sendScreen(activity, activityLabel);
+    stopTiming(Timer.ACTIVITY_RESUMED, start);
+  }
+
+  @Override
+  public void onActivityPaused(Activity activity) {
+    super.onActivityPaused(activity);
+
+    // A resumed activity always reports its screen, even if it was the last one sent.
+    synchronized (screenLock) {
+      lastScreenName = null;
+      lastScreenActivity = null;
     }
   }
 
@@ -144,106 +433,638 @@ public class FirebaseIntegration extends Integration<FirebaseAnalytics> {
   public void onActivityStarted(Activity activity) {
     super.onActivityStarted(activity);
 
-    this.currentActivity = activity;
+    this.currentActivity = new WeakReference<>(activity);
+    if (trimmed) {
+      restoreCaches();
+    }
   }
 
   @Override
   public void onActivityStopped(Activity activity) {
     super.onActivityStopped(activity);
 
-    this.currentActivity = null;
+    // The next activity may have started before this one stopped.
+    if (currentActivity() == activity) {
+      this.currentActivity = null;
+    }
+  }
+
+  /**
+   * Releases memory when the system asks to, with a {@link ComponentCallbacks2} trim level. At
+   * {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW} and {@link
+   * ComponentCallbacks2#TRIM_MEMORY_BACKGROUND}, caches of event mappings and keys are emptied and
+   * kept to a fraction of their usual size until an activity is started again. At {@link
+   * ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL} and from {@link
+   * ComponentCallbacks2#TRIM_MEMORY_MODERATE}, activity labels and recently tracked events are
+   * also forgotten, so a duplicate may be sent. Other levels, including the app's UI being hidden,
+   * keep everything. Calls waiting to be sent are never dropped. Integrations created by a {@link
+   * Factory} are registered for trim callbacks already.
+   */
+  public void trimMemory(int level) {
+    boolean critical;
+    switch (level) {
+      case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+      case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+        critical = false;
+        break;
+      case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+      case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+      case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+        critical = true;
+        break;
+      default:
+        return;
+    }
+    trimmed = true;
+    keyCacheSize = TRIMMED_KEY_CACHE_SIZE;
+    KEY_CACHE.clear();
+    eventPlans.clear();
+    productKeys.resize(TRIMMED_PLANNED_KEYS);
+    if (defaultParameterKeys != null) {
+      defaultParameterKeys.resize(TRIMMED_PLANNED_KEYS);
+    }
+    if (critical) {
+      activityLabels.clear();
+      if (duplicates != null) {
+        duplicates.clear();
+      }
+    }
+    if (verbose) {
+      logger.verbose("Trimmed caches for memory level %s.", level);
+    }
+  }
+
+  private void restoreCaches() {
+    trimmed = false;
+    keyCacheSize = KEY_CACHE_SIZE;
+    productKeys.resize(MAX_PLANNED_KEYS);
+    if (defaultParameterKeys != null) {
+      defaultParameterKeys.resize(MAX_PLANNED_KEYS);
+    }
+    for (EventPlan plan : eventPlans.values()) {
+      plan.properties.resize(MAX_PLANNED_KEYS);
+    }
+  }
+
+  /** Returns how much the integration currently holds in memory. */
+  public Footprint footprint() {
+    int plannedKeys = productKeys.size();
+    if (defaultParameterKeys != null) {
+      plannedKeys += defaultParameterKeys.size();
+    }
+    for (EventPlan plan : eventPlans.values()) {
+      plannedKeys += plan.properties.size();
+    }
+    int pendingCalls = 0;
+    if (deferredSink != null) {
+      pendingCalls += deferredSink.pendingCount();
+    }
+    if (dispatcher != null) {
+      pendingCalls += dispatcher.pendingCount();
+    }
+    return new Footprint(
+        eventPlans.size(),
+        plannedKeys,
+        KEY_CACHE.size(),
+        activityLabels.size(),
+        duplicates == null ? 0 : duplicates.size(),
+        pendingCalls,
+        trimmed);
+  }
+
+  private Activity currentActivity() {
+    WeakReference<Activity> reference = currentActivity;
+    return reference == null ? null : reference.get();
   }
 
   @Override
-  public void identify(IdentifyPayload identify) {
+  public void identify(final IdentifyPayload identify) {
     super.identify(identify);
 
-    if (!isNullOrEmpty(identify.userId())) {
-      firebaseAnalytics.setUserId(identify.userId());
+    if (dispatcher == null) {
+      performIdentify(identify);
+      return;
+    }
+    dispatcher.dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performIdentify(identify);
+          }
+        });
+  }
+
+  private void performIdentify(IdentifyPayload identify) {
+    long start = startTiming();
+    String userId = identify.userId();
+    if (!isNullOrEmpty(userId) && userProperties.putUserId(userId)) {
+      sink.setUserId(userId);
     }
     Map<String, Object> traits = identify.traits();
-    for (Map.Entry<String, Object> entry : traits.entrySet()) {
-      String trait = entry.getKey();
-      String value = String.valueOf(entry.getValue());
-      trait = makeKey(trait);
-      firebaseAnalytics.setUserProperty(trait, value);
-      logger.verbose("firebaseAnalytics.setUserProperty(%s, %s);", trait, value);
+    List<String> rejected = null;
+    TraitProjection projection = settings.traitProjection;
+    if (projection == null) {
+      for (Map.Entry<String, Object> entry : traits.entrySet()) {
+        String name = userPropertyName(entry.getKey());
+        if (name != null) {
+          rejected = sendUserProperty(name, entry.getValue(), rejected);
+        }
+      }
+    } else {
+      // Only look up the projected traits, so the others cost nothing however many there are.
+      for (Map.Entry<String, TraitProjection.Trait> entry : projection.traits.entrySet()) {
+        Object value = traits.get(entry.getKey());
+        if (value == null) {
+          continue;
+        }
+        TraitProjection.Trait trait = entry.getValue();
+        Object coerced = trait.type.coerce(value);
+        if (coerced == null) {
+          if (verbose) {
+            logger.verbose("Skipped trait %s, which is not a %s.", entry.getKey(), trait.type);
+          }
+          continue;
+        }
+        rejected = sendUserProperty(trait.name, coerced, rejected);
+      }
+    }
+    userProperties.apply();
+    if (rejected != null) {
+      if (verbose) {
+        logger.verbose(
+            "Dropped user properties %s over the limit of %s.",
+            rejected, FirebaseLimits.MAX_USER_PROPERTIES);
+      }
+      if (metrics != null) {
+        metrics.add(FirebaseMetrics.Counter.USER_PROPERTIES_DROPPED, rejected.size());
+      }
+    }
+    stopTiming(Timer.IDENTIFY, start);
+  }
+
+  /**
+   * Sends {@code value} as the user property {@code name} if it changed. Firebase keeps at most
+   * {@link FirebaseLimits#MAX_USER_PROPERTIES} user properties, so once that many have been sent a
+   * new name is added to {@code rejected} instead, which is created if {@code null} and returned.
+   */
+  private List<String> sendUserProperty(String name, Object value, List<String> rejected) {
+    String string = stringify(value, FirebaseLimits.MAX_USER_PROPERTY_VALUE_LENGTH);
+    switch (userProperties.putUserProperty(name, string, FirebaseLimits.MAX_USER_PROPERTIES)) {
+      case CHANGED:
+        sink.setUserProperty(name, string);
+        if (verbose) {
+          logger.verbose("firebaseAnalytics.setUserProperty(%s, %s);", name, string);
+        }
+        return rejected;
+      case OVER_LIMIT:
+        if (rejected == null) {
+          rejected = new ArrayList<>();
+        }
+        rejected.add(name);
+        return rejected;
+      default:
+        return rejected;
     }
   }
 
+  /**
+   * Returns the user property name for a trait, truncated to the length Firebase accepts, or {@code
+   * null} if the name is reserved by Firebase.
+   */
+  private String userPropertyName(String trait) {
+    String name = makeKey(trait);
+    if (name.length() > FirebaseLimits.MAX_USER_PROPERTY_NAME_LENGTH) {
+      name = name.substring(0, FirebaseLimits.MAX_USER_PROPERTY_NAME_LENGTH);
+      if (metrics != null) {
+        metrics.increment(FirebaseMetrics.Counter.KEYS_TRUNCATED);
+      }
+    }
+    if (FirebaseLimits.isReservedUserPropertyName(name)) {
+      if (metrics != null) {
+        metrics.increment(FirebaseMetrics.Counter.RESERVED_NAMES_DROPPED);
+      }
+      return null;
+    }
+    return name;
+  }
+
   @Override
-  public void track(TrackPayload track) {
+  public void reset() {
+    super.reset();
+
+    if (dispatcher == null) {
+      performReset();
+      return;
+    }
+    dispatcher.dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performReset();
+          }
+        });
+  }
+
+  private void performReset() {
+    userProperties.clear();
+    if (defaultParameters != null) {
+      defaultParameters.clear();
+      sink.setDefaultEventParameters(null);
+      if (verbose) {
+        logger.verbose("firebaseAnalytics.setDefaultEventParameters(null);");
+      }
+    }
+  }
+
+  @Override
+  public void flush() {
+    super.flush();
+
+    if (dispatcher != null) {
+      dispatcher.flush();
+    }
+  }
+
+  @Override
+  public void track(final TrackPayload track) {
     super.track(track);
 
-    String event = track.event();
-    String eventName;
-    if (EVENT_MAPPER.containsKey(event)) {
-      eventName = EVENT_MAPPER.get(event);
-    } else {
-      eventName = makeKey(event);
+    final EventPlan plan = planFor(track.event());
+    if (plan.dropped) {
+      if (verbose) {
+        logger.verbose("Dropped event %s.", track.event());
+      }
+      if (metrics != null) {
+        metrics.increment(FirebaseMetrics.Counter.EVENTS_DROPPED);
+      }
+      return;
+    }
+    if (plan.dedupWindow > 0
+        && duplicates.isDuplicate(
+            DuplicateFilter.fingerprint(track.event(), track.properties()),
+            System.nanoTime(),
+            plan.dedupWindow)) {
+      if (verbose) {
+        logger.verbose("Suppressed duplicate event %s.", track.event());
+      }
+      if (metrics != null) {
+        metrics.increment(FirebaseMetrics.Counter.EVENTS_DEDUPLICATED);
+      }
+      return;
+    }
+    if (!plan.policy.allow(track.anonymousId())) {
+      if (verbose) {
+        logger.verbose("Skipped event %s by its sampling or rate limit.", track.event());
+      }
+      if (metrics != null) {
+        metrics.increment(plan.policy.rejectedCounter());
+      }
+      return;
+    }
+    if (dispatcher == null) {
+      performTrack(plan, track);
+      return;
     }
+    dispatcher.dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performTrack(plan, track);
+          }
+        });
+  }
+
+  private void performTrack(EventPlan plan, TrackPayload track) {
+    long start = startTiming();
+    String eventName = plan.eventName;
     Properties properties = track.properties();
-    Bundle formattedProperties = formatProperties(properties);
-    firebaseAnalytics.logEvent(eventName, formattedProperties);
-    logger.verbose("firebaseAnalytics.logEvent(%s, %s);", eventName, formattedProperties);
+    Bundle formattedProperties = formatProperties(plan, properties);
+    stopTiming(Timer.FORMAT, start);
+    if (defaultParameters != null) {
+      sendDefaultParameters();
+    }
+    sink.logEvent(eventName, formattedProperties);
+    if (verbose) {
+      logger.verbose("firebaseAnalytics.logEvent(%s, %s);", eventName, formattedProperties);
+    } else if (debugSampleRate > 0 && debugSampleCount.getAndIncrement() % debugSampleRate == 0) {
+      logger.debug(
+          "Sampled 1 in %s: firebaseAnalytics.logEvent(%s, %s);",
+          debugSampleRate, eventName, formattedProperties);
+    }
+    stopTiming(Timer.TRACK, start);
+  }
+
+  /** Sends the default event parameters if any changed while formatting the current event. */
+  private void sendDefaultParameters() {
+    Map<String, Object> values = defaultParameters.takeChanged();
+    if (values == null) {
+      return;
+    }
+    Bundle params = new Bundle(values.size());
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      String key = defaultParameterKeys.resolve(entry.getKey());
+      if (key == null) {
+        continue;
+      }
+      if (entry.getValue() == DefaultParameters.REMOVED) {
+        // Firebase clears a default parameter set to null.
+        params.putString(key, null);
+      } else {
+        putValue(params, key, entry.getValue());
+      }
+    }
+    sink.setDefaultEventParameters(params);
+    if (verbose) {
+      logger.verbose("firebaseAnalytics.setDefaultEventParameters(%s);", params);
+    }
   }
 
   @Override
   public void screen(ScreenPayload screen) {
     super.screen(screen);
 
-    if (this.currentActivity != null) {
-      firebaseAnalytics.setCurrentScreen(this.currentActivity, screen.name(), null);
+    final Activity activity = currentActivity();
+    if (activity == null && !logScreenViews) {
+      return;
+    }
+    final String screenName = screen.name();
+    // FirebaseAnalytics ignores setCurrentScreen off the main thread, where Segment delivers calls.
+    if (dispatcher == null || !logScreenViews) {
+      performScreen(activity, screenName);
+      return;
     }
+    dispatcher.dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performScreen(activity, screenName);
+          }
+        });
   }
 
-  private static Bundle formatProperties(Properties properties) {
-    Bundle bundle = new Bundle();
-    if ((properties.revenue() != 0 || properties.total() != 0)
-        && isNullOrEmpty(properties.currency())) {
-      bundle.putString(Param.CURRENCY, "USD");
+  private void performScreen(Activity activity, String screenName) {
+    long start = startTiming();
+    sendScreen(activity, screenName);
+    stopTiming(Timer.SCREEN, start);
+  }
+
+  /**
+   * Sends {@code screenName} as the current screen, either with setCurrentScreen or as a {@link
+   * Event#SCREEN_VIEW} event, unless it is the same screen of the same activity as the last one
+   * sent. {@code activity} may only be {@code null} when logging screen_view events.
+   */
+  private void sendScreen(Activity activity, String screenName) {
+    if (isRepeatScreen(activity, screenName)) {
+      if (verbose) {
+        logger.verbose("Skipped repeated screen %s.", screenName);
+      }
+      if (metrics != null) {
+        metrics.increment(FirebaseMetrics.Counter.SCREENS_DEDUPLICATED);
+      }
+      return;
+    }
+    if (logScreenViews) {
+      Bundle params = new Bundle(2);
+      params.putString(Param.SCREEN_NAME, screenName);
+      if (activity != null) {
+        params.putString(Param.SCREEN_CLASS, activity.getClass().getSimpleName());
+      }
+      sink.logEvent(Event.SCREEN_VIEW, params);
+      if (verbose) {
+        logger.verbose("firebaseAnalytics.logEvent(%s, %s);", Event.SCREEN_VIEW, params);
+      }
+    } else {
+      sink.setCurrentScreen(activity, screenName, null);
+      if (verbose) {
+        logger.verbose("firebaseAnalytics.setCurrentScreen(activity, %s, null);", screenName);
+      }
+    }
+  }
+
+  private boolean isRepeatScreen(Activity activity, String screenName) {
+    synchronized (screenLock) {
+      if (lastScreenActivity != null
+          && lastScreenActivity.get() == activity
+          && (screenName == null ? lastScreenName == null : screenName.equals(lastScreenName))) {
+        return true;
+      }
+      lastScreenName = screenName;
+      lastScreenActivity = new WeakReference<>(activity);
+      return false;
+    }
+  }
+
+  /** Returns the metrics configured for this integration, or {@code null} if disabled. */
+  public FirebaseMetrics metrics() {
+    return metrics;
+  }
+
+  private long startTiming() {
+    return metrics == null ? 0 : System.nanoTime();
+  }
+
+  private void stopTiming(Timer timer, long start) {
+    if (metrics != null) {
+      metrics.record(timer, System.nanoTime() - start);
     }
+  }
+
+  /**
+   * Returns the compiled plan for {@code event}, compiling it on first use. Once {@link
+   * #MAX_EVENT_PLANS} events have been seen, plans for new events are compiled per call instead of
+   * cached.
+   */
+  private EventPlan planFor(String event) {
+    EventPlan plan = eventPlans.get(event);
+    if (plan != null) {
+      return plan;
+    }
+    String eventName = settings.eventNames.get(event);
+    if (eventName == null) {
+      eventName = makeKey(event);
+    }
+    boolean reserved = FirebaseLimits.isReservedEventName(eventName);
+    if (reserved) {
+      logger.debug("%s is reserved by Firebase and will not be logged.", eventName);
+      if (metrics != null) {
+        metrics.increment(FirebaseMetrics.Counter.RESERVED_NAMES_DROPPED);
+      }
+    }
+    // Plans beyond the cache are built on every call, so they share one default rate limit.
+    boolean cached = eventPlans.size() < (trimmed ? TRIMMED_EVENT_PLANS : MAX_EVENT_PLANS);
+    plan =
+        new EventPlan(
+            eventName,
+            new KeyPlan(
+                settings.propertyNames,
+                trimmed ? TRIMMED_PLANNED_KEYS : MAX_PLANNED_KEYS,
+                metrics),
+            settings.propertyAllowlists.get(event),
+            reserved || settings.droppedEvents.contains(event),
+            settings.policyFor(event, eventName, !cached),
+            settings.dedupWindowFor(event));
+    if (cached) {
+      EventPlan existing = eventPlans.putIfAbsent(event, plan);
+      if (existing != null) {
+        return existing;
+      }
+    }
+    return plan;
+  }
+
+  /**
+   * Maps {@code properties} to a Firebase parameter Bundle, visiting each property and each product
+   * exactly once. Currency defaults to USD when there is a non-zero revenue, total or value and no
+   * property was mapped to {@link Param#CURRENCY}.
+   *
+   * <p>Parameters with reserved names are skipped. If there are more parameters than Firebase
+   * accepts, the lowest priority ones (see {@link FirebaseSettings#rankOf(String)}) are dropped
+   * before their values are formatted. Nested maps are flattened into {@code parent_child}
+   * parameters up to {@link Options.Builder#flattenNestedProperties(int)} levels deep.
+   */
+  private Bundle formatProperties(EventPlan plan, Properties properties) {
+    int size = properties.size();
+    Bundle bundle = new Bundle(Math.min(size + 1, FirebaseLimits.MAX_EVENT_PARAMETERS));
+    // Flattening can add parameters, so the budget is needed whenever it is enabled.
+    ParameterBudget budget =
+        size + 1 > FirebaseLimits.MAX_EVENT_PARAMETERS || flattenDepth > 0
+            ? new ParameterBudget()
+            : null;
+    boolean hasAmount = false;
     for (Map.Entry<String, Object> entry : properties.entrySet()) {
+      String key = entry.getKey();
+      if (plan.propertyAllowlist != null && !plan.propertyAllowlist.contains(key)) {
+        continue;
+      }
       Object value = entry.getValue();
-      String property = entry.getKey();
-      if (PROPERTY_MAPPER.containsKey(property)) {
-        property = PROPERTY_MAPPER.get(property);
-      } else {
-        property = makeKey(property);
+      // Properties#total() falls back to revenue and then value, so any of them is an amount.
+      if (!hasAmount
+          && (REVENUE_KEY.equals(key) || TOTAL_KEY.equals(key) || VALUE_KEY.equals(key))) {
+        hasAmount = coerceToDouble(value) != 0;
+      }
+      if (defaultParameters != null && defaultParameters.absorb(key, value)) {
+        continue;
       }
-      if (property.equals(Param.ITEMS) && value != null) {
-        List<ValueMap> products = properties.getList("products", ValueMap.class);
-        ArrayList<Bundle> mappedProducts = formatProducts(products);
-        bundle.putParcelableArrayList(property, mappedProducts);
+      if (value instanceof Map && flattenDepth > 0) {
+        putFlattened(bundle, budget, plan, key, (Map<?, ?>) value, 1);
       } else {
-        putValue(bundle, property, value);
+        putParameter(bundle, budget, plan, key, value);
+      }
+    }
+    if (hasAmount
+        && !bundle.containsKey(Param.CURRENCY)
+        && (budget == null
+            || budget.admit(bundle, Param.CURRENCY, settings.rankOf(Param.CURRENCY)))) {
+      bundle.putString(Param.CURRENCY, "USD");
+    }
+    if (budget != null && budget.dropped() > 0) {
+      if (verbose) {
+        logger.verbose(
+            "Dropped %s parameters of %s over the limit of %s.",
+            budget.dropped(), plan.eventName, FirebaseLimits.MAX_EVENT_PARAMETERS);
+      }
+      if (metrics != null) {
+        metrics.add(FirebaseMetrics.Counter.PARAMS_DROPPED, budget.dropped());
       }
     }
     return bundle;
   }
 
-  private static ArrayList<Bundle> formatProducts(List<ValueMap> products) {
-    ArrayList<Bundle> mappedProducts = new ArrayList<>();
-    if (products == null) return mappedProducts;
+  /** Resolves {@code key} and puts {@code value} under it, if the name and budget allow. */
+  private void putParameter(
+      Bundle bundle, ParameterBudget budget, EventPlan plan, String key, Object value) {
+    String property = plan.properties.resolve(key);
+    if (property == null
+        || (budget != null && !budget.admit(bundle, property, settings.rankOf(property)))) {
+      return;
+    }
+    if (property.equals(Param.ITEMS) && value != null) {
+      bundle.putParcelableArrayList(property, formatProducts(value));
+    } else {
+      putValue(bundle, property, value);
+    }
+  }
 
-    for (ValueMap product : products) {
-      Bundle mappedProduct = new Bundle();
-      for (Map.Entry<String, Object> innerEntry : product.entrySet()) {
-        String key = innerEntry.getKey();
-        Object value = innerEntry.getValue();
-        if (PRODUCT_MAPPER.containsKey(key)) {
-          key = PRODUCT_MAPPER.get(key);
-        } else {
-          key = makeKey(key);
+  /** Puts each entry of {@code map} as {@code prefix.key}, recursing up to the flatten depth. */
+  private void putFlattened(
+      Bundle bundle,
+      ParameterBudget budget,
+      EventPlan plan,
+      String prefix,
+      Map<?, ?> map,
+      int depth) {
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      String key = prefix + '.' + entry.getKey();
+      Object value = entry.getValue();
+      if (value instanceof Map && depth < flattenDepth) {
+        putFlattened(bundle, budget, plan, key, (Map<?, ?>) value, depth + 1);
+      } else {
+        putParameter(bundle, budget, plan, key, value);
+      }
+    }
+  }
+
+  /**
+   * Maps each map in {@code products} to a Bundle. Anything that is not a map is skipped, and so is
+   * everything after the first {@link FirebaseLimits#MAX_ITEMS} products.
+   */
+  private ArrayList<Bundle> formatProducts(Object products) {
+    if (!(products instanceof List)) {
+      return new ArrayList<>(0);
+    }
+    List<?> productList = (List<?>) products;
+    ArrayList<Bundle> mappedProducts =
+        new ArrayList<>(Math.min(productList.size(), FirebaseLimits.MAX_ITEMS));
+    int visited = 0;
+    for (Object item : productList) {
+      if (mappedProducts.size() == FirebaseLimits.MAX_ITEMS) {
+        int dropped = productList.size() - visited;
+        if (verbose) {
+          logger.verbose(
+              "Dropped %s products over the limit of %s.", dropped, FirebaseLimits.MAX_ITEMS);
+        }
+        if (metrics != null) {
+          metrics.add(FirebaseMetrics.Counter.ITEMS_DROPPED, dropped);
+        }
+        break;
+      }
+      visited++;
+      if (!(item instanceof Map)) {
+        continue;
+      }
+      Map<?, ?> product = (Map<?, ?>) item;
+      Bundle mappedProduct = new Bundle(product.size());
+      for (Map.Entry<?, ?> innerEntry : product.entrySet()) {
+        String key = productKeys.resolve(String.valueOf(innerEntry.getKey()));
+        if (key != null) {
+          putValue(mappedProduct, key, innerEntry.getValue());
         }
-        putValue(mappedProduct, key, value);
       }
       mappedProducts.add(mappedProduct);
     }
     return mappedProducts;
   }
 
-  private static void putValue(Bundle bundle, String key, Object value) {
+  /** Same coercion as {@link ValueMap#getDouble(String, double)} with a default of 0. */
+  private static double coerceToDouble(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof String) {
+      try {
+        return Double.valueOf((String) value);
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Puts numbers natively, widening {@code Float} to double and {@code Short} and {@code Byte} to
+   * int. Firebase only accepts string, long and double values, so everything else, including
+   * booleans, is put as a string (see {@link #stringify(Object, int)}).
+   */
+  private void putValue(Bundle bundle, String key, Object value) {
     if (value instanceof Integer) {
       int intValue = (int) value;
       bundle.putInt(key, intValue);
@@ -253,20 +1074,390 @@ public class FirebaseIntegration extends Integration<FirebaseAnalytics> {
     } else if (value instanceof Long) {
       long longValue = (long) value;
       bundle.putLong(key, longValue);
+    } else if (value instanceof Float) {
+      bundle.putDouble(key, ((Float) value).doubleValue());
+    } else if (value instanceof Short || value instanceof Byte) {
+      bundle.putInt(key, ((Number) value).intValue());
     } else {
-      String stringValue = String.valueOf(value);
+      String stringValue = stringify(value, FirebaseLimits.MAX_PARAMETER_VALUE_LENGTH);
       bundle.putString(key, stringValue);
     }
   }
 
+  /**
+   * Same as {@link String#valueOf(Object)} truncated to {@code maxLength}, except that dates are
+   * formatted as ISO-8601. Maps and lists stop being written once the limit is reached, so large
+   * nested values are never fully serialized.
+   */
+  private String stringify(Object value, int maxLength) {
+    if (value instanceof String) {
+      return truncate((String) value, maxLength);
+    }
+    if (value instanceof Date) {
+      return truncate(toISO8601Date((Date) value), maxLength);
+    }
+    if (!(value instanceof Map) && !(value instanceof List)) {
+      return truncate(String.valueOf(value), maxLength);
+    }
+    StringBuilder builder = new StringBuilder(maxLength + 1);
+    appendBounded(builder, value, maxLength);
+    return truncate(builder.toString(), maxLength);
+  }
+
+  /**
+   * Appends {@code value} the way {@link String#valueOf(Object)} would write it. Returns {@code
+   * false}, leaving {@code builder} partially written, once it holds more than {@code limit}
+   * characters.
+   */
+  private static boolean appendBounded(StringBuilder builder, Object value, int limit) {
+    // A separator may already have taken the builder past the limit.
+    if (builder.length() > limit) {
+      return false;
+    }
+    if (value instanceof Map) {
+      builder.append('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (!first) {
+          builder.append(", ");
+        }
+        first = false;
+        if (!appendBounded(builder, entry.getKey(), limit)) {
+          return false;
+        }
+        builder.append('=');
+        if (!appendBounded(builder, entry.getValue(), limit)) {
+          return false;
+        }
+      }
+      builder.append('}');
+    } else if (value instanceof List) {
+      builder.append('[');
+      boolean first = true;
+      for (Object item : (List<?>) value) {
+        if (!first) {
+          builder.append(", ");
+        }
+        first = false;
+        if (!appendBounded(builder, item, limit)) {
+          return false;
+        }
+      }
+      builder.append(']');
+    } else if (value instanceof Date) {
+      builder.append(toISO8601Date((Date) value));
+    } else if (value instanceof String) {
+      String string = (String) value;
+      builder.append(string, 0, Math.min(string.length(), limit + 1 - builder.length()));
+    } else {
+      builder.append(value);
+    }
+    return builder.length() <= limit;
+  }
+
+  private String truncate(String value, int maxLength) {
+    if (value.length() <= maxLength) {
+      return value;
+    }
+    if (metrics != null) {
+      metrics.increment(FirebaseMetrics.Counter.VALUES_TRUNCATED);
+    }
+    return value.substring(0, maxLength);
+  }
+
+  /**
+   * Returns a Firebase-safe version of {@code key}. If the key contains any of {@code . - :} or a
+   * space, it is trimmed and those characters are replaced with {@code _}. The result is truncated
+   * to 40 characters. Results are cached, so repeated keys cost a single lookup.
+   */
   public static String makeKey(String key) {
-    String[] forbiddenChars = {".", "-", " ", ":"};
-    for (String forbidden : forbiddenChars) {
-      if (key.contains(forbidden)) {
-        key = key.trim().replace(forbidden, "_");
+    String sanitized = KEY_CACHE.get(key);
+    if (sanitized == null) {
+      sanitized = sanitizeKey(key);
+      if (KEY_CACHE.size() >= keyCacheSize) {
+        KEY_CACHE.clear();
+      }
+      KEY_CACHE.put(key, sanitized);
+    }
+    return sanitized;
+  }
+
+  /** Single-pass equivalent of trimming, replacing forbidden characters and truncating. */
+  private static String sanitizeKey(String key) {
+    int length = key.length();
+    boolean hasForbidden = false;
+    for (int i = 0; i < length; i++) {
+      if (isForbidden(key.charAt(i))) {
+        hasForbidden = true;
+        break;
       }
     }
+    if (!hasForbidden) {
+      return length > MAX_KEY_LENGTH ? key.substring(0, MAX_KEY_LENGTH) : key;
+    }
+
+    // Same bounds as String.trim().
+    int start = 0;
+    int end = length;
+    while (start < end && key.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && key.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    char[] chars = new char[Math.min(end - start, MAX_KEY_LENGTH)];
+    for (int i = 0; i < chars.length; i++) {
+      char c = key.charAt(start + i);
+      chars[i] = isForbidden(c) ? '_' : c;
+    }
+    return new String(chars);
+  }
+
+  static boolean isForbidden(char c) {
+    return c == '.' || c == '-' || c == ' ' || c == ':';
+  }
+
+  /** What to do when the asynchronous dispatch queue is full. */
+  public enum OverflowPolicy {
+    /** Discard the oldest queued call to make room for the new one. */
+    DROP_OLDEST,
+    /** Discard the new call. */
+    DROP_NEWEST,
+    /**
+     * Block the calling thread until there is room in the queue. Segment delivers calls on the main
+     * thread, where the wait is cut short after one second and the new call discarded, so that a
+     * full queue cannot cause an ANR.
+     */
+    BLOCK
+  }
+
+  /** Entry counts of the integration's caches and buffers, from {@link #footprint()}. */
+  public static final class Footprint {
+
+    /** Compiled mappings of Segment events. */
+    public final int eventPlans;
+    /** Resolved property and product keys, across all event plans. */
+    public final int plannedKeys;
+    /** Sanitized keys, shared by all integrations. */
+    public final int cachedKeys;
+    public final int activityLabels;
+    /** Recently tracked events remembered to suppress duplicates. */
+    public final int dedupEntries;
+    /** Calls waiting for Firebase to be initialized or for the dispatch thread. */
+    public final int pendingCalls;
+    /** Whether caches are kept small after {@link #trimMemory(int)}. */
+    public final boolean trimmed;
+
+    Footprint(
+        int eventPlans,
+        int plannedKeys,
+        int cachedKeys,
+        int activityLabels,
+        int dedupEntries,
+        int pendingCalls,
+        boolean trimmed) {
+      this.eventPlans = eventPlans;
+      this.plannedKeys = plannedKeys;
+      this.cachedKeys = cachedKeys;
+      this.activityLabels = activityLabels;
+      this.dedupEntries = dedupEntries;
+      this.pendingCalls = pendingCalls;
+      this.trimmed = trimmed;
+    }
+
+    @Override
+    public String toString() {
+      return "Footprint{eventPlans="
+          + eventPlans
+          + ", plannedKeys="
+          + plannedKeys
+          + ", cachedKeys="
+          + cachedKeys
+          + ", activityLabels="
+          + activityLabels
+          + ", dedupEntries="
+          + dedupEntries
+          + ", pendingCalls="
+          + pendingCalls
+          + ", trimmed="
+          + trimmed
+          + '}';
+    }
+  }
+
+  /** Client-side options for the Firebase integration. */
+  public static final class Options {
 
-    return key.substring(0, Math.min(key.length(), 40));
+    final boolean persistUserProperties;
+    final boolean prewarmActivityLabels;
+    final int dispatchQueueCapacity;
+    final OverflowPolicy dispatchOverflowPolicy;
+    final FirebaseMetrics metrics;
+    final int deferredCallCapacity;
+    final int flattenDepth;
+    final boolean logScreenViews;
+    final FirebaseSink sink;
+    final int constantPropertyDetection;
+    final int debugSampleRate;
+
+    Options(Builder builder) {
+      this.persistUserProperties = builder.persistUserProperties;
+      this.prewarmActivityLabels = builder.prewarmActivityLabels;
+      this.dispatchQueueCapacity = builder.dispatchQueueCapacity;
+      this.dispatchOverflowPolicy = builder.dispatchOverflowPolicy;
+      this.metrics = builder.metrics;
+      this.deferredCallCapacity = builder.deferredCallCapacity;
+      this.flattenDepth = builder.flattenDepth;
+      this.logScreenViews = builder.logScreenViews;
+      this.sink = builder.sink;
+      this.constantPropertyDetection = builder.constantPropertyDetection;
+      this.debugSampleRate = builder.debugSampleRate;
+    }
+
+    /** Fluent API for creating {@link Options}. */
+    public static final class Builder {
+
+      private boolean persistUserProperties;
+      private boolean prewarmActivityLabels;
+      private int dispatchQueueCapacity;
+      private OverflowPolicy dispatchOverflowPolicy;
+      private FirebaseMetrics metrics;
+      private int deferredCallCapacity;
+      private int flattenDepth;
+      private boolean logScreenViews;
+      private FirebaseSink sink;
+      private int constantPropertyDetection;
+      private int debugSampleRate;
+
+      /**
+       * Persist the last user ID and user properties sent to Firebase, so that unchanged values are
+       * also skipped on the first identify after a cold start. Disabled by default.
+       */
+      public Builder persistUserProperties(boolean persistUserProperties) {
+        this.persistUserProperties = persistUserProperties;
+        return this;
+      }
+
+      /**
+       * Resolve the labels of every activity in the manifest on a background thread when the
+       * integration is created, instead of on the main thread the first time each is resumed.
+       * Disabled by default.
+       */
+      public Builder prewarmActivityLabels(boolean prewarmActivityLabels) {
+        this.prewarmActivityLabels = prewarmActivityLabels;
+        return this;
+      }
+
+      /**
+       * Format and send track, identify and screen calls on a dedicated background thread instead
+       * of the thread that delivered them. Calls are sent in the order they were received. At most
+       * {@code queueCapacity} calls are held; {@code overflowPolicy} decides what happens beyond
+       * that. Use {@link FirebaseIntegration#flush()} to wait for queued calls to be sent; on the
+       * main thread it waits at most one second. Screens sent with setCurrentScreen, which
+       * Firebase only accepts on the main thread, are still sent when they are delivered, so they
+       * may reach Firebase ahead of earlier queued calls. Disabled by default.
+       */
+      public Builder dispatchAsynchronously(int queueCapacity, OverflowPolicy overflowPolicy) {
+        if (queueCapacity <= 0) {
+          throw new IllegalArgumentException("queueCapacity must be greater than zero.");
+        }
+        if (overflowPolicy == null) {
+          throw new IllegalArgumentException("overflowPolicy == null");
+        }
+        this.dispatchQueueCapacity = queueCapacity;
+        this.dispatchOverflowPolicy = overflowPolicy;
+        return this;
+      }
+
+      /**
+       * Record call counts and latencies into {@code metrics}. Disabled by default, in which case
+       * no timing is done at all.
+       */
+      public Builder metrics(FirebaseMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+      }
+
+      /**
+       * Create the FirebaseAnalytics instance, and check the permissions it needs, on a background
+       * thread instead of while the integration is created. Up to {@code bufferCapacity} calls to
+       * Firebase made before it is ready are held and replayed in order; later ones are dropped.
+       * If a permission is missing, held and later calls are discarded. Disabled by default.
+       */
+      public Builder deferInitialization(int bufferCapacity) {
+        if (bufferCapacity <= 0) {
+          throw new IllegalArgumentException("bufferCapacity must be greater than zero.");
+        }
+        this.deferredCallCapacity = bufferCapacity;
+        return this;
+      }
+
+      /**
+       * Flatten map-valued properties into one parameter per entry, named {@code parent_child},
+       * down to {@code maxDepth} levels of nesting. Maps nested deeper are sent as strings, cut
+       * off at Firebase's value length limit. Disabled (0) by default.
+       */
+      public Builder flattenNestedProperties(int maxDepth) {
+        if (maxDepth < 0) {
+          throw new IllegalArgumentException("maxDepth must not be negative.");
+        }
+        this.flattenDepth = maxDepth;
+        return this;
+      }
+
+      /**
+       * Log screens as {@code screen_view} events instead of calling setCurrentScreen. Events are
+       * queued and uploaded in batches by Firebase like any other, can be sent from any thread, and
+       * screen calls are forwarded even when no activity is started. Disabled by default.
+       */
+      public Builder logScreenViews(boolean logScreenViews) {
+        this.logScreenViews = logScreenViews;
+        return this;
+      }
+
+      /**
+       * Send to {@code sink} instead of FirebaseAnalytics, which is then never created, and skip
+       * the permission checks it needs. Deferred initialization has no effect with a custom sink.
+       */
+      public Builder sink(FirebaseSink sink) {
+        this.sink = sink;
+        return this;
+      }
+
+      /**
+       * Send a property as a Firebase default event parameter, instead of with each event, once it
+       * has had the same value in {@code consecutiveEvents} track calls in a row. A property whose
+       * value changes before then is never hoisted, and one whose value changes later is removed
+       * from the defaults and sent with each event again. Hoisted properties are attached by
+       * Firebase to every later event, including events that did not have them. Properties can
+       * also be listed in the {@code defaultEventParameters} setting, which keeps them hoisted and
+       * re-sends them as defaults whenever their value changes. Disabled (0) by default.
+       */
+      public Builder detectConstantProperties(int consecutiveEvents) {
+        if (consecutiveEvents < 0) {
+          throw new IllegalArgumentException("consecutiveEvents must not be negative.");
+        }
+        this.constantPropertyDetection = consecutiveEvents;
+        return this;
+      }
+
+      /**
+       * Log one in every {@code everyNthEvent} tracked events, with all of its parameters, at the
+       * debug log level, so that diagnostics can be left on under load. Has no effect below the
+       * debug log level, or at the verbose level, where every event is logged. Disabled (0) by
+       * default.
+       */
+      public Builder sampleDebugLogging(int everyNthEvent) {
+        if (everyNthEvent < 0) {
+          throw new IllegalArgumentException("everyNthEvent must not be negative.");
+        }
+        this.debugSampleRate = everyNthEvent;
+        return this;
+      }
+
+      public Options build() {
+        return new Options(this);
+      }
+    }
   }
 }
@@ -0,0 +1,97 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Limits that Firebase Analytics enforces by silently dropping or truncating data. Enforcing them
+ * while formatting avoids building parameters Firebase would throw away.
+ *
+ * @see <a href="https://support.google.com/firebase/answer/9237506">Collection and configuration
+ *     limits</a>
+ */
+final class FirebaseLimits {
+
+  static final int MAX_EVENT_PARAMETERS = 25;
+  static final int MAX_PARAMETER_VALUE_LENGTH = 100;
+  static final int MAX_ITEMS = 200;
+  static final int MAX_USER_PROPERTIES = 25;
+  static final int MAX_USER_PROPERTY_NAME_LENGTH = 24;
+  static final int MAX_USER_PROPERTY_VALUE_LENGTH = 36;
+
+  private static final String[] RESERVED_PREFIXES = {"firebase_", "google_", "ga_"};
+
+  private static final Set<String> RESERVED_EVENT_NAMES =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList(
+                  "ad_activeview",
+                  "ad_click",
+                  "ad_exposure",
+                  "ad_impression",
+                  "ad_query",
+                  "ad_reward",
+                  "adunit_exposure",
+                  "app_background",
+                  "app_clear_data",
+                  "app_exception",
+                  "app_remove",
+                  "app_store_refund",
+                  "app_store_subscription_cancel",
+                  "app_store_subscription_convert",
+                  "app_store_subscription_renew",
+                  "app_update",
+                  "app_upgrade",
+                  "dynamic_link_app_open",
+                  "dynamic_link_app_update",
+                  "dynamic_link_first_open",
+                  "error",
+                  "first_open",
+                  "first_visit",
+                  "in_app_purchase",
+                  "notification_dismiss",
+                  "notification_foreground",
+                  "notification_open",
+                  "notification_receive",
+                  "os_update",
+                  "session_start",
+                  "session_start_with_rollout",
+                  "user_engagement")));
+
+  private static final Set<String> RESERVED_USER_PROPERTY_NAMES =
+      Collections.unmodifiableSet(
+          new HashSet<>(
+              Arrays.asList(
+                  "first_open_after_install",
+                  "first_open_time",
+                  "first_visit_time",
+                  "last_deep_link_referrer",
+                  "user_id")));
+
+  private FirebaseLimits() {
+    throw new AssertionError("No instances");
+  }
+
+  static boolean isReservedEventName(String name) {
+    return RESERVED_EVENT_NAMES.contains(name) || hasReservedPrefix(name);
+  }
+
+  static boolean isReservedParameterName(String name) {
+    return hasReservedPrefix(name);
+  }
+
+  static boolean isReservedUserPropertyName(String name) {
+    return RESERVED_USER_PROPERTY_NAMES.contains(name) || hasReservedPrefix(name);
+  }
+
+  private static boolean hasReservedPrefix(String name) {
+    for (String prefix : RESERVED_PREFIXES) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,199 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts and latency histograms for the Firebase integration. Pass an instance to {@link
+ * FirebaseIntegration.Options.Builder#metrics(FirebaseMetrics)} to enable recording, and read it
+ * back with {@link #snapshot()}. Recording is lock-free and can be left on in production.
+ *
+ * <p>Latencies are kept in power-of-two buckets: bucket {@code i} counts durations in {@code
+ * [2^(i-1), 2^i)} nanoseconds, and the last bucket also counts everything longer.
+ */
+public final class FirebaseMetrics {
+
+  /** Operations whose latency is recorded. */
+  public enum Timer {
+    /** A whole track call, including formatting and the Firebase call. */
+    TRACK,
+    /** A whole identify call. */
+    IDENTIFY,
+    /** A whole screen call. */
+    SCREEN,
+    /** A whole onActivityResumed callback. */
+    ACTIVITY_RESUMED,
+    /** Building the parameter Bundle for a track call. */
+    FORMAT,
+    /** A single call into the Firebase SDK. */
+    FIREBASE_CALL
+  }
+
+  /** Events that are counted. */
+  public enum Counter {
+    /** Keys that had forbidden characters replaced the first time they were resolved. */
+    KEYS_SANITIZED,
+    /** Keys that were truncated to 40 characters the first time they were resolved. */
+    KEYS_TRUNCATED,
+    /** Calls dropped because the asynchronous dispatch queue was full. */
+    CALLS_DROPPED,
+    /** Track calls not forwarded because their anonymous ID was sampled out. */
+    EVENTS_SAMPLED_OUT,
+    /** Track calls not forwarded because their event's rate limit was exceeded. */
+    EVENTS_RATE_LIMITED,
+    /** Track calls suppressed as identical to a recent call, within the event's dedup window. */
+    EVENTS_DEDUPLICATED,
+    /** Screens not sent because they repeat the last screen sent for the same activity. */
+    SCREENS_DEDUPLICATED,
+    /** Track calls not forwarded because settings drop the event or its name is reserved. */
+    EVENTS_DROPPED,
+    /** Event, parameter and user property names dropped because Firebase reserves them. */
+    RESERVED_NAMES_DROPPED,
+    /** Event parameters dropped because the event had more than Firebase accepts. */
+    PARAMS_DROPPED,
+    /** Products dropped because the items array had more than Firebase accepts. */
+    ITEMS_DROPPED,
+    /** User properties dropped because Firebase's limit of user properties was reached. */
+    USER_PROPERTIES_DROPPED,
+    /** Parameter and user property values truncated to the length Firebase accepts. */
+    VALUES_TRUNCATED
+  }
+
+  /**
+   * Receives every recorded sample, on the thread that recorded it. Implementations must be fast
+   * and thread-safe.
+   */
+  public interface Listener {
+
+    void onTiming(Timer timer, long durationNanos);
+
+    void onCount(Counter counter, long delta);
+  }
+
+  static final int BUCKET_COUNT = 40;
+  private static final Timer[] TIMERS = Timer.values();
+  private static final Counter[] COUNTERS = Counter.values();
+
+  private final Listener listener;
+  private final AtomicLongArray timerCounts = new AtomicLongArray(TIMERS.length);
+  private final AtomicLongArray timerTotals = new AtomicLongArray(TIMERS.length);
+  private final AtomicLongArray buckets = new AtomicLongArray(TIMERS.length * BUCKET_COUNT);
+  private final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+
+  public FirebaseMetrics() {
+    this(null);
+  }
+
+  /** @param listener notified of every sample as it is recorded, or {@code null}. */
+  public FirebaseMetrics(Listener listener) {
+    this.listener = listener;
+  }
+
+  void record(Timer timer, long durationNanos) {
+    int index = timer.ordinal();
+    timerCounts.incrementAndGet(index);
+    timerTotals.addAndGet(index, durationNanos);
+    buckets.incrementAndGet(index * BUCKET_COUNT + bucketFor(durationNanos));
+    if (listener != null) {
+      listener.onTiming(timer, durationNanos);
+    }
+  }
+
+  void increment(Counter counter) {
+    add(counter, 1);
+  }
+
+  void add(Counter counter, long delta) {
+    counters.addAndGet(counter.ordinal(), delta);
+    if (listener != null) {
+      listener.onCount(counter, delta);
+    }
+  }
+
+  static int bucketFor(long durationNanos) {
+    if (durationNanos <= 0) {
+      return 0;
+    }
+    return Math.min(64 - Long.numberOfLeadingZeros(durationNanos), BUCKET_COUNT - 1);
+  }
+
+  /**
+   * Returns a copy of everything recorded so far. Values recorded concurrently with this call may
+   * or may not be included.
+   */
+  public Snapshot snapshot() {
+    long[] timerCounts = new long[TIMERS.length];
+    long[] timerTotals = new long[TIMERS.length];
+    long[] buckets = new long[TIMERS.length * BUCKET_COUNT];
+    long[] counters = new long[COUNTERS.length];
+    for (int i = 0; i < timerCounts.length; i++) {
+      timerCounts[i] = this.timerCounts.get(i);
+      timerTotals[i] = this.timerTotals.get(i);
+    }
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = this.buckets.get(i);
+    }
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = this.counters.get(i);
+    }
+    return new Snapshot(timerCounts, timerTotals, buckets, counters);
+  }
+
+  /** An immutable copy of {@link FirebaseMetrics} at a point in time. */
+  public static final class Snapshot {
+
+    private final long[] timerCounts;
+    private final long[] timerTotals;
+    private final long[] buckets;
+    private final long[] counters;
+
+    Snapshot(long[] timerCounts, long[] timerTotals, long[] buckets, long[] counters) {
+      this.timerCounts = timerCounts;
+      this.timerTotals = timerTotals;
+      this.buckets = buckets;
+      this.counters = counters;
+    }
+
+    /** Number of samples recorded for {@code timer}. */
+    public long count(Timer timer) {
+      return timerCounts[timer.ordinal()];
+    }
+
+    /** Sum of all samples recorded for {@code timer}, in nanoseconds. */
+    public long totalNanos(Timer timer) {
+      return timerTotals[timer.ordinal()];
+    }
+
+    /** Latency histogram for {@code timer}; see {@link FirebaseMetrics} for the bucket bounds. */
+    public long[] histogram(Timer timer) {
+      long[] histogram = new long[BUCKET_COUNT];
+      System.arraycopy(buckets, timer.ordinal() * BUCKET_COUNT, histogram, 0, BUCKET_COUNT);
+      return histogram;
+    }
+
+    /**
+     * Upper bound, in nanoseconds, of the bucket containing the {@code percentile} (0-100) sample
+     * for {@code timer}, or 0 if nothing was recorded.
+     */
+    public long percentileNanos(Timer timer, double percentile) {
+      long count = count(timer);
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(count * Math.max(0, Math.min(percentile, 100)) / 100);
+      int offset = timer.ordinal() * BUCKET_COUNT;
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += buckets[offset + i];
+        if (seen >= rank && seen > 0) {
+          return 1L << i;
+        }
+      }
+      return 1L << (BUCKET_COUNT - 1);
+    }
+
+    /** Value of {@code counter}. */
+    public long count(Counter counter) {
+      return counters[counter.ordinal()];
+    }
+  }
+}
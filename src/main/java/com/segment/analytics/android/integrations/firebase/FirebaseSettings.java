@@ -0,0 +1,284 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import com.google.firebase.analytics.FirebaseAnalytics.Event;
+import com.segment.analytics.ValueMap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The integration settings from the Segment dashboard, compiled once when the integration is
+ * created into immutable lookup tables. Nothing here is parsed again on the event path.
+ *
+ * <pre>
+ * {
+ *   "eventMappings": { "Video Played": "video_start" },
+ *   "propertyMappings": { "video_id": "item_id" },
+ *   "propertyAllowlists": { "Video Played": ["video_id", "position"] },
+ *   "droppedEvents": ["Scroll Depth Reached"],
+ *   "eventPolicies": {
+ *     "Product Viewed": { "sampleRate": 0.1 },
+ *     "*": { "maxPerSecond": 2, "burst": 10 }
+ *   },
+ *   "parameterPriority": ["value", "currency", "video_id"],
+ *   "dedupWindows": { "Button Tapped": 500 },
+ *   "defaultEventParameters": ["app_variant", "locale"],
+ *   "userProperties": { "plan": "subscription_plan", "age": { "type": "number" } }
+ * }
+ * </pre>
+ *
+ * <p>See {@link EventPolicy} for the policy formats. The {@code "*"} policy applies to every event
+ * without a policy of its own, except the commerce events in {@link #EXEMPT_EVENTS}. Each of those
+ * events gets its own rate limit, so one busy event cannot use up the limit of the others.
+ *
+ * <p>When an event has more parameters than Firebase accepts, the ones listed in {@code
+ * "parameterPriority"} are kept first, in order, then parameters mapped from a Segment property,
+ * then everything else.
+ *
+ * <p>{@code "dedupWindows"} gives, in milliseconds, how long after a track call an identical call
+ * (same event and properties) is suppressed. A {@code "*"} window applies to every event without
+ * one of its own.
+ *
+ * <p>{@code "defaultEventParameters"} lists properties that are constant for the session. They are
+ * sent once as Firebase default event parameters instead of with each event.
+ *
+ * <p>{@code "userProperties"} lists the only traits forwarded as user properties; see {@link
+ * TraitProjection} for its format. Without it, every trait is forwarded as a string.
+ */
+final class FirebaseSettings {
+
+  /** Firebase events that the default policy never applies to. */
+  static final Set<String> EXEMPT_EVENTS =
+      Collections.unmodifiableSet(new HashSet<>(Arrays.asList(Event.PURCHASE, Event.REFUND)));
+
+  static final FirebaseSettings DEFAULT = compile(new ValueMap());
+
+  private static final String EVENT_MAPPINGS_KEY = "eventMappings";
+  private static final String PROPERTY_MAPPINGS_KEY = "propertyMappings";
+  private static final String PROPERTY_ALLOWLISTS_KEY = "propertyAllowlists";
+  private static final String DROPPED_EVENTS_KEY = "droppedEvents";
+  private static final String EVENT_POLICIES_KEY = "eventPolicies";
+  private static final String DEFAULT_POLICY_KEY = "*";
+  private static final String PARAMETER_PRIORITY_KEY = "parameterPriority";
+  private static final String DEDUP_WINDOWS_KEY = "dedupWindows";
+  private static final String DEFAULT_DEDUP_WINDOW_KEY = "*";
+  private static final String DEFAULT_EVENT_PARAMETERS_KEY = "defaultEventParameters";
+  private static final String USER_PROPERTIES_KEY = "userProperties";
+
+  /** Segment event name to Firebase event name. Built-in mappings are overridden by settings. */
+  final Map<String, String> eventNames;
+  /** Segment property name to Firebase parameter name. */
+  final Map<String, String> propertyNames;
+  /** Segment product property name to Firebase item parameter name. */
+  final Map<String, String> productNames;
+  /** Segment event name to the only properties forwarded for it. Absent means all properties. */
+  final Map<String, Set<String>> propertyAllowlists;
+  /** Segment event names that are never forwarded. */
+  final Set<String> droppedEvents;
+  /** Segment event name to its sampling or rate limiting policy. */
+  final Map<String, EventPolicy> eventPolicies;
+  /** Settings of the policy for events without one of their own, or {@code null} if none. */
+  private final ValueMap defaultPolicy;
+  /**
+   * The default policy shared by every event that has no plan of its own, so that events beyond the
+   * plan cache are still limited.
+   */
+  private final EventPolicy sharedDefaultPolicy;
+  /** Firebase parameter name to its rank when trimming parameters; lower ranks are kept first. */
+  final Map<String, Integer> parameterRanks;
+  /** Rank of parameters absent from {@link #parameterRanks}. */
+  final int customParameterRank;
+  /** Segment event name to its dedup window in nanoseconds. */
+  final Map<String, Long> dedupWindows;
+  /** Dedup window for events without one of their own, in nanoseconds; 0 if disabled. */
+  final long defaultDedupWindow;
+  /** Segment properties sent as default event parameters instead of with each event. */
+  final Set<String> defaultEventParameters;
+  /** The traits forwarded as user properties, or {@code null} for all of them. */
+  final TraitProjection traitProjection;
+
+  private FirebaseSettings(
+      Map<String, String> eventNames,
+      Map<String, String> propertyNames,
+      Map<String, String> productNames,
+      Map<String, Set<String>> propertyAllowlists,
+      Set<String> droppedEvents,
+      Map<String, EventPolicy> eventPolicies,
+      ValueMap defaultPolicy,
+      Map<String, Integer> parameterRanks,
+      Map<String, Long> dedupWindows,
+      long defaultDedupWindow,
+      Set<String> defaultEventParameters,
+      TraitProjection traitProjection) {
+    this.eventNames = eventNames;
+    this.propertyNames = propertyNames;
+    this.productNames = productNames;
+    this.propertyAllowlists = propertyAllowlists;
+    this.droppedEvents = droppedEvents;
+    this.eventPolicies = eventPolicies;
+    this.defaultPolicy = defaultPolicy;
+    this.sharedDefaultPolicy =
+        defaultPolicy == null ? EventPolicy.ALWAYS : EventPolicy.compile(defaultPolicy);
+    this.parameterRanks = parameterRanks;
+    this.customParameterRank = parameterRanks.size();
+    this.dedupWindows = dedupWindows;
+    this.defaultDedupWindow = defaultDedupWindow;
+    this.defaultEventParameters = defaultEventParameters;
+    this.traitProjection = traitProjection;
+  }
+
+  static FirebaseSettings compile(ValueMap settings) {
+    ValueMap policies = settings.getValueMap(EVENT_POLICIES_KEY);
+    Map<String, EventPolicy> eventPolicies = policies(policies);
+    eventPolicies.remove(DEFAULT_POLICY_KEY);
+    Map<String, Long> dedupWindows = dedupWindows(settings.getValueMap(DEDUP_WINDOWS_KEY));
+    Long defaultDedupWindow = dedupWindows.remove(DEFAULT_DEDUP_WINDOW_KEY);
+    Map<String, String> propertyNames =
+        mappings(FirebaseIntegration.PROPERTY_MAPPER, settings.getValueMap(PROPERTY_MAPPINGS_KEY));
+    return new FirebaseSettings(
+        mappings(FirebaseIntegration.EVENT_MAPPER, settings.getValueMap(EVENT_MAPPINGS_KEY)),
+        propertyNames,
+        Collections.unmodifiableMap(new HashMap<>(FirebaseIntegration.PRODUCT_MAPPER)),
+        allowlists(settings.getValueMap(PROPERTY_ALLOWLISTS_KEY)),
+        Collections.unmodifiableSet(strings(settings.get(DROPPED_EVENTS_KEY))),
+        Collections.unmodifiableMap(eventPolicies),
+        policies == null ? null : policies.getValueMap(DEFAULT_POLICY_KEY),
+        ranks(settings.get(PARAMETER_PRIORITY_KEY), propertyNames.values()),
+        Collections.unmodifiableMap(dedupWindows),
+        defaultDedupWindow == null ? 0 : defaultDedupWindow,
+        Collections.unmodifiableSet(strings(settings.get(DEFAULT_EVENT_PARAMETERS_KEY))),
+        TraitProjection.compile(settings.getValueMap(USER_PROPERTIES_KEY)));
+  }
+
+  /**
+   * Returns the policy for a Segment event, given the Firebase event it is logged as. Events with
+   * their own policy use it; otherwise the default policy applies unless the event is exempt. Each
+   * call compiles a new default policy, with its own rate limit, unless {@code shared}.
+   */
+  EventPolicy policyFor(String event, String firebaseEvent, boolean shared) {
+    EventPolicy policy = eventPolicies.get(event);
+    if (policy != null) {
+      return policy;
+    }
+    if (defaultPolicy == null || EXEMPT_EVENTS.contains(firebaseEvent)) {
+      return EventPolicy.ALWAYS;
+    }
+    return shared ? sharedDefaultPolicy : EventPolicy.compile(defaultPolicy);
+  }
+
+  /** Rank of {@code parameter} when trimming an event's parameters to Firebase's limit. */
+  int rankOf(String parameter) {
+    Integer rank = parameterRanks.get(parameter);
+    return rank == null ? customParameterRank : rank;
+  }
+
+  /** Returns the dedup window for a Segment event in nanoseconds, or 0 if it has none. */
+  long dedupWindowFor(String event) {
+    Long window = dedupWindows.get(event);
+    return window == null ? defaultDedupWindow : window;
+  }
+
+  /** Whether any event has a dedup window. */
+  boolean hasDedupWindows() {
+    return defaultDedupWindow > 0 || !dedupWindows.isEmpty();
+  }
+
+  private static Map<String, EventPolicy> policies(ValueMap policies) {
+    Map<String, EventPolicy> compiled = new HashMap<>();
+    if (policies != null) {
+      for (Map.Entry<String, Object> entry : policies.entrySet()) {
+        ValueMap config = policies.getValueMap(entry.getKey());
+        if (config != null) {
+          compiled.put(entry.getKey(), EventPolicy.compile(config));
+        }
+      }
+    }
+    return compiled;
+  }
+
+  /** Converts positive windows from milliseconds to nanoseconds and drops everything else. */
+  private static Map<String, Long> dedupWindows(ValueMap windows) {
+    Map<String, Long> compiled = new HashMap<>();
+    if (windows != null) {
+      for (Map.Entry<String, Object> entry : windows.entrySet()) {
+        long millis = windows.getLong(entry.getKey(), 0);
+        if (millis > 0) {
+          compiled.put(entry.getKey(), TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+      }
+    }
+    return compiled;
+  }
+
+  /** Merges {@code custom} over {@code defaults}, sanitizing the custom Firebase names. */
+  private static Map<String, String> mappings(Map<String, String> defaults, ValueMap custom) {
+    Map<String, String> merged = new HashMap<>(defaults);
+    if (custom != null) {
+      for (Map.Entry<String, Object> entry : custom.entrySet()) {
+        if (entry.getValue() instanceof String) {
+          merged.put(entry.getKey(), FirebaseIntegration.makeKey((String) entry.getValue()));
+        }
+      }
+    }
+    return Collections.unmodifiableMap(merged);
+  }
+
+  /**
+   * Ranks each name in {@code priority} by its position, and every {@code mapped} parameter not in
+   * {@code priority} just after them.
+   */
+  private static Map<String, Integer> ranks(Object priority, Collection<String> mapped) {
+    Map<String, Integer> ranks = new HashMap<>();
+    if (priority instanceof List) {
+      for (Object parameter : (List<?>) priority) {
+        if (!(parameter instanceof String)) {
+          continue;
+        }
+        String key = FirebaseIntegration.makeKey((String) parameter);
+        if (!ranks.containsKey(key)) {
+          ranks.put(key, ranks.size());
+        }
+      }
+    }
+    int mappedRank = ranks.size();
+    for (String parameter : mapped) {
+      if (!ranks.containsKey(parameter)) {
+        ranks.put(parameter, mappedRank);
+      }
+    }
+    return Collections.unmodifiableMap(ranks);
+  }
+
+  private static Map<String, Set<String>> allowlists(ValueMap allowlists) {
+    if (allowlists == null || allowlists.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, Set<String>> compiled = new HashMap<>(allowlists.size());
+    for (Map.Entry<String, Object> entry : allowlists.entrySet()) {
+      if (entry.getValue() instanceof List) {
+        compiled.put(entry.getKey(), Collections.unmodifiableSet(strings(entry.getValue())));
+      }
+    }
+    return Collections.unmodifiableMap(compiled);
+  }
+
+  private static Set<String> strings(Object list) {
+    if (!(list instanceof List)) {
+      return Collections.emptySet();
+    }
+    Set<String> strings = new HashSet<>();
+    for (Object item : (List<?>) list) {
+      if (item instanceof String) {
+        strings.add((String) item);
+      }
+    }
+    return strings;
+  }
+}
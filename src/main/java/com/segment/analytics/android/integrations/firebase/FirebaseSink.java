@@ -0,0 +1,25 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+/**
+ * The subset of {@code FirebaseAnalytics} that the integration sends data to. The default sink
+ * forwards to {@code FirebaseAnalytics}; pass another one to {@link
+ * FirebaseIntegration.Options.Builder#sink(FirebaseSink)} to run the integration without Firebase,
+ * for example a {@link RecordingFirebaseSink} in tests and benchmarks. Implementations must be
+ * thread-safe when the integration dispatches asynchronously.
+ */
+public interface FirebaseSink {
+
+  void logEvent(String name, Bundle params);
+
+  void setUserProperty(String name, String value);
+
+  void setUserId(String id);
+
+  void setCurrentScreen(Activity activity, String screenName, String screenClassOverride);
+
+  /** Sets parameters logged with every event, or clears them if {@code params} is null. */
+  void setDefaultEventParameters(Bundle params);
+}
@@ -0,0 +1,78 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the Firebase key resolved for each source key, so that mapping a key that has been
+ * seen before is a single lookup. Keys are resolved through a fixed mapper first and fall back to
+ * {@link FirebaseIntegration#makeKey(String)}. At most {@code maxKeys} resolutions are kept; keys
+ * beyond that are resolved on every call. The limit can be {@link #resize changed} under memory
+ * pressure. Keys that resolve to a name reserved by Firebase resolve
+ * to {@code null}.
+ */
+final class KeyPlan {
+
+  private final Map<String, String> mapper;
+  private volatile int maxKeys;
+  private final ConcurrentHashMap<String, String> resolved;
+  private final FirebaseMetrics metrics;
+
+  /** @param metrics where sanitized and truncated keys are counted, or {@code null}. */
+  KeyPlan(Map<String, String> mapper, int maxKeys, FirebaseMetrics metrics) {
+    this.mapper = mapper;
+    this.maxKeys = maxKeys;
+    this.metrics = metrics;
+    this.resolved = new ConcurrentHashMap<>();
+  }
+
+  String resolve(String key) {
+    String mapped = resolved.get(key);
+    if (mapped != null) {
+      return mapped;
+    }
+    mapped = mapper.get(key);
+    if (mapped == null) {
+      mapped = FirebaseIntegration.makeKey(key);
+      if (metrics != null && !mapped.equals(key)) {
+        countSanitized(key, mapped);
+      }
+    }
+    if (FirebaseLimits.isReservedParameterName(mapped)) {
+      if (metrics != null) {
+        metrics.increment(FirebaseMetrics.Counter.RESERVED_NAMES_DROPPED);
+      }
+      return null;
+    }
+    if (resolved.size() < maxKeys) {
+      resolved.put(key, mapped);
+    }
+    return mapped;
+  }
+
+  private void countSanitized(String key, String sanitized) {
+    boolean replaced = false;
+    for (int i = 0; i < key.length() && !replaced; i++) {
+      replaced = FirebaseIntegration.isForbidden(key.charAt(i));
+    }
+    if (replaced) {
+      metrics.increment(FirebaseMetrics.Counter.KEYS_SANITIZED);
+    }
+    if (sanitized.length() == FirebaseIntegration.MAX_KEY_LENGTH
+        && (replaced ? key.trim() : key).length() > FirebaseIntegration.MAX_KEY_LENGTH) {
+      metrics.increment(FirebaseMetrics.Counter.KEYS_TRUNCATED);
+    }
+  }
+
+  int size() {
+    return resolved.size();
+  }
+
+  /** Changes how many resolutions are kept, forgetting all of them if the limit shrinks. */
+  void resize(int maxKeys) {
+    if (maxKeys < this.maxKeys) {
+      resolved.clear();
+    }
+    this.maxKeys = maxKeys;
+  }
+}
@@ -0,0 +1,52 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.os.Bundle;
+
+/**
+ * Keeps a parameter Bundle within {@link FirebaseLimits#MAX_EVENT_PARAMETERS} entries. Once the
+ * Bundle is full, a new parameter is only admitted if it outranks (has a lower rank than) a
+ * parameter already in the Bundle, which is then evicted.
+ */
+final class ParameterBudget {
+
+  private final String[] keys = new String[FirebaseLimits.MAX_EVENT_PARAMETERS];
+  private final int[] ranks = new int[FirebaseLimits.MAX_EVENT_PARAMETERS];
+  private int size;
+  private int dropped;
+
+  /**
+   * Returns {@code true} if {@code key} may be put into {@code bundle}, evicting a lower priority
+   * parameter from it if needed. Keys already in the Bundle are always admitted.
+   */
+  boolean admit(Bundle bundle, String key, int rank) {
+    if (bundle.containsKey(key)) {
+      return true;
+    }
+    if (size < keys.length) {
+      keys[size] = key;
+      ranks[size] = rank;
+      size++;
+      return true;
+    }
+    // Evict the last of the worst ranked, so ties keep the parameters that arrived first.
+    int worst = 0;
+    for (int i = 1; i < size; i++) {
+      if (ranks[i] >= ranks[worst]) {
+        worst = i;
+      }
+    }
+    dropped++;
+    if (ranks[worst] <= rank) {
+      return false;
+    }
+    bundle.remove(keys[worst]);
+    keys[worst] = key;
+    ranks[worst] = rank;
+    return true;
+  }
+
+  /** Number of parameters rejected or evicted so far. */
+  int dropped() {
+    return dropped;
+  }
+}
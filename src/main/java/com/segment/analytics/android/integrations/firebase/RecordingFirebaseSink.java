@@ -0,0 +1,117 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link FirebaseSink} that records calls in memory instead of sending them anywhere, for tests,
+ * profiling and load tests on a plain JVM. Recording is lock-free. Activities are not retained;
+ * only their screen names are.
+ */
+public final class RecordingFirebaseSink implements FirebaseSink {
+
+  /** The kind of a recorded call. */
+  public enum Method {
+    LOG_EVENT,
+    SET_USER_PROPERTY,
+    SET_USER_ID,
+    SET_CURRENT_SCREEN,
+    SET_DEFAULT_EVENT_PARAMETERS
+  }
+
+  /** A single recorded call. Fields that don't apply to the method are {@code null}. */
+  public static final class Call {
+
+    public final Method method;
+    /** Event name, user property name or screen name. */
+    public final String name;
+    /** User property value, user ID or screen class override. */
+    public final String value;
+    /** Event parameters or default event parameters. */
+    public final Bundle params;
+
+    Call(Method method, String name, String value, Bundle params) {
+      this.method = method;
+      this.name = name;
+      this.value = value;
+      this.params = params;
+    }
+
+    @Override
+    public String toString() {
+      return method + "(" + name + ", " + (params != null ? params : value) + ")";
+    }
+  }
+
+  private final int maxRecorded;
+  private final ConcurrentLinkedQueue<Call> calls = new ConcurrentLinkedQueue<>();
+  private final AtomicLong callCount = new AtomicLong();
+
+  /** Records every call. */
+  public RecordingFirebaseSink() {
+    this(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Records the first {@code maxRecorded} calls and only counts the rest, so long load tests run in
+   * constant memory.
+   */
+  public RecordingFirebaseSink(int maxRecorded) {
+    if (maxRecorded < 0) {
+      throw new IllegalArgumentException("maxRecorded < 0");
+    }
+    this.maxRecorded = maxRecorded;
+  }
+
+  @Override
+  public void logEvent(String name, Bundle params) {
+    record(Method.LOG_EVENT, name, null, params);
+  }
+
+  @Override
+  public void setUserProperty(String name, String value) {
+    record(Method.SET_USER_PROPERTY, name, value, null);
+  }
+
+  @Override
+  public void setUserId(String id) {
+    record(Method.SET_USER_ID, null, id, null);
+  }
+
+  @Override
+  public void setCurrentScreen(Activity activity, String screenName, String screenClassOverride) {
+    record(Method.SET_CURRENT_SCREEN, screenName, screenClassOverride, null);
+  }
+
+  @Override
+  public void setDefaultEventParameters(Bundle params) {
+    record(Method.SET_DEFAULT_EVENT_PARAMETERS, null, null, params);
+  }
+
+  private void record(Method method, String name, String value, Bundle params) {
+    if (callCount.getAndIncrement() < maxRecorded) {
+      calls.add(new Call(method, name, value, params));
+    }
+  }
+
+  /** Returns the recorded calls, oldest first. */
+  public List<Call> calls() {
+    return new ArrayList<>(calls);
+  }
+
+  /** Number of calls made, including those beyond the recording limit. */
+  public long callCount() {
+    return callCount.get();
+  }
+
+  /** Forgets every recorded call and resets the count. */
+  public void clear() {
+    calls.clear();
+    callCount.set(0);
+  }
+}
@@ -0,0 +1,53 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+import static com.segment.analytics.android.integrations.firebase.FirebaseMetrics.Timer.FIREBASE_CALL;
+
+/** Records the time spent in each call to the wrapped sink as {@code FIREBASE_CALL}. */
+class TimingSink implements FirebaseSink {
+
+  private final FirebaseSink delegate;
+  private final FirebaseMetrics metrics;
+
+  TimingSink(FirebaseSink delegate, FirebaseMetrics metrics) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void logEvent(String name, Bundle params) {
+    long start = System.nanoTime();
+    delegate.logEvent(name, params);
+    metrics.record(FIREBASE_CALL, System.nanoTime() - start);
+  }
+
+  @Override
+  public void setUserProperty(String name, String value) {
+    long start = System.nanoTime();
+    delegate.setUserProperty(name, value);
+    metrics.record(FIREBASE_CALL, System.nanoTime() - start);
+  }
+
+  @Override
+  public void setUserId(String id) {
+    long start = System.nanoTime();
+    delegate.setUserId(id);
+    metrics.record(FIREBASE_CALL, System.nanoTime() - start);
+  }
+
+  @Override
+  public void setCurrentScreen(Activity activity, String screenName, String screenClassOverride) {
+    long start = System.nanoTime();
+    delegate.setCurrentScreen(activity, screenName, screenClassOverride);
+    metrics.record(FIREBASE_CALL, System.nanoTime() - start);
+  }
+
+  @Override
+  public void setDefaultEventParameters(Bundle params) {
+    long start = System.nanoTime();
+    delegate.setDefaultEventParameters(params);
+    metrics.record(FIREBASE_CALL, System.nanoTime() - start);
+  }
+}
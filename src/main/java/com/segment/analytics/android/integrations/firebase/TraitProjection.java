@@ -0,0 +1,162 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import com.segment.analytics.ValueMap;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The traits forwarded as Firebase user properties, compiled from the {@code "userProperties"}
+ * setting. Each listed trait is either renamed, or given a name and a type its value is coerced to
+ * before it is converted to a string:
+ *
+ * <pre>
+ * {
+ *   "plan": "subscription_plan",
+ *   "createdAt": { "name": "signup_date", "type": "date" },
+ *   "age": { "type": "number" },
+ *   "email": false
+ * }
+ * </pre>
+ *
+ * <p>Names are sanitized and truncated here, once; traits whose name is reserved by Firebase, and
+ * entries set to {@code false}, are left out. Traits are listed in priority order: when Firebase's
+ * user property limit is reached, the ones listed first have already taken the available slots.
+ */
+final class TraitProjection {
+
+  private static final String NAME_KEY = "name";
+  private static final String TYPE_KEY = "type";
+
+  /** How a trait's value is coerced before it is converted to a string. */
+  enum Type {
+    /** Any value, converted as is. */
+    STRING,
+    /** Numbers and numeric strings, without a fraction if they are whole. */
+    NUMBER,
+    /** Booleans, "true" and "false" in any case, and numbers, which are true unless zero. */
+    BOOLEAN,
+    /** Dates, milliseconds since the epoch, and strings, which are assumed to be formatted. */
+    DATE;
+
+    /** Returns {@code value} as this type, or {@code null} if it cannot be coerced. */
+    Object coerce(Object value) {
+      if (value == null) {
+        return null;
+      }
+      switch (this) {
+        case NUMBER:
+          return number(value);
+        case BOOLEAN:
+          if (value instanceof Boolean) {
+            return value;
+          }
+          if (value instanceof Number) {
+            return ((Number) value).doubleValue() != 0;
+          }
+          if ("true".equalsIgnoreCase(value.toString())) {
+            return Boolean.TRUE;
+          }
+          return "false".equalsIgnoreCase(value.toString()) ? Boolean.FALSE : null;
+        case DATE:
+          if (value instanceof Number) {
+            return new Date(((Number) value).longValue());
+          }
+          return value instanceof Date || value instanceof String ? value : null;
+        default:
+          return value;
+      }
+    }
+
+    private static Object number(Object value) {
+      double number;
+      if (value instanceof Number) {
+        if (!(value instanceof Double) && !(value instanceof Float)) {
+          return ((Number) value).longValue();
+        }
+        number = ((Number) value).doubleValue();
+      } else if (value instanceof String) {
+        try {
+          number = Double.parseDouble((String) value);
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      } else {
+        return null;
+      }
+      if (Double.isNaN(number) || Double.isInfinite(number)) {
+        return null;
+      }
+      long whole = (long) number;
+      return whole == number ? (Object) whole : (Object) number;
+    }
+  }
+
+  /** A trait's Firebase user property name and the type of its value. */
+  static final class Trait {
+
+    final String name;
+    final Type type;
+
+    Trait(String name, Type type) {
+      this.name = name;
+      this.type = type;
+    }
+  }
+
+  /** Source trait name to its projection, in priority order. */
+  final Map<String, Trait> traits;
+
+  private TraitProjection(Map<String, Trait> traits) {
+    this.traits = traits;
+  }
+
+  /** Compiles the projection, or returns {@code null} to forward every trait as a string. */
+  static TraitProjection compile(ValueMap config) {
+    if (config == null || config.isEmpty()) {
+      return null;
+    }
+    Map<String, Trait> traits = new LinkedHashMap<>(config.size());
+    for (Map.Entry<String, Object> entry : config.entrySet()) {
+      String trait = entry.getKey();
+      Object value = entry.getValue();
+      String name = trait;
+      Type type = Type.STRING;
+      if (Boolean.FALSE.equals(value)) {
+        continue;
+      }
+      if (value instanceof String) {
+        name = (String) value;
+      } else if (value instanceof Map) {
+        ValueMap options = config.getValueMap(trait);
+        name = options.getString(NAME_KEY);
+        if (name == null) {
+          name = trait;
+        }
+        type = type(options.getString(TYPE_KEY));
+      }
+      name = FirebaseIntegration.makeKey(name);
+      if (name.length() > FirebaseLimits.MAX_USER_PROPERTY_NAME_LENGTH) {
+        name = name.substring(0, FirebaseLimits.MAX_USER_PROPERTY_NAME_LENGTH);
+      }
+      if (!FirebaseLimits.isReservedUserPropertyName(name)) {
+        traits.put(trait, new Trait(name, type));
+      }
+    }
+    return new TraitProjection(Collections.unmodifiableMap(traits));
+  }
+
+  private static Type type(String type) {
+    if (type == null) {
+      return Type.STRING;
+    }
+    try {
+      return Type.valueOf(type.toUpperCase(Locale.US));
+    } catch (IllegalArgumentException e) {
+      return Type.STRING;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package com.segment.analytics.android.integrations.firebase;
+
+import android.content.SharedPreferences;
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.segment.analytics.internal.Utils.THREAD_PREFIX;
+
+/**
+ * The last user ID and user property values sent to Firebase. {@link #putUserId(String)} and
+ * {@link #putUserProperty(String, String, int)} report when the value is unchanged, so identify
+ * calls only forward what actually changed. The snapshot also holds every user property name sent,
+ * which is what Firebase's limit on user properties counts. When backed by {@link
+ * SharedPreferences} the snapshot survives process restarts. It is then read on a background
+ * thread, and changes are only written by {@link #apply()}, so that one identify call costs one
+ * write.
+ */
+class UserPropertySnapshot {
+
+  /** The outcome of {@link #putUserProperty(String, String, int)}. */
+  enum Result {
+    CHANGED,
+    UNCHANGED,
+    /** The name is new and the limit of user properties has been reached. */
+    OVER_LIMIT
+  }
+
+  private static final String USER_ID_KEY = "userId";
+  private static final String USER_PROPERTY_PREFIX = "userProperty.";
+  /**
+   * Held, and compared by identity, for a user property whose last value never reached Firebase.
+   * The name still counts towards the limit, since an earlier value may have.
+   */
+  private static final String UNKNOWN = new String("");
+
+  private final SharedPreferences preferences;
+  // Guarded by this.
+  private final Map<String, String> userProperties = new HashMap<>();
+  private String userId;
+  private boolean loaded;
+  /** Changes not yet written to the preferences, or {@code null} if there are none. */
+  private SharedPreferences.Editor pending;
+
+  /** @param preferences backing store, or {@code null} to keep the snapshot in memory only. */
+  UserPropertySnapshot(SharedPreferences preferences) {
+    this.preferences = preferences;
+    if (preferences == null) {
+      loaded = true;
+      return;
+    }
+    // Reading the preferences waits for disk, so keep it off the thread creating the integration.
+    // Calls that arrive before it finishes wait for the lock instead.
+    Thread thread =
+        new Thread(THREAD_PREFIX + "Firebase-UserProperties") {
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            synchronized (UserPropertySnapshot.this) {
+              ensureLoaded();
+            }
+          }
+        };
+    thread.start();
+  }
+
+  // Called with the lock held.
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (!(value instanceof String)) {
+        continue;
+      }
+      if (USER_ID_KEY.equals(key)) {
+        userId = (String) value;
+      } else if (key.startsWith(USER_PROPERTY_PREFIX)) {
+        userProperties.put(key.substring(USER_PROPERTY_PREFIX.length()), (String) value);
+      }
+    }
+  }
+
+  /** Records {@code userId}, returning {@code true} if it differs from the last one sent. */
+  synchronized boolean putUserId(String userId) {
+    ensureLoaded();
+    if (userId.equals(this.userId)) {
+      return false;
+    }
+    this.userId = userId;
+    if (preferences != null) {
+      editor().putString(USER_ID_KEY, userId);
+    }
+    return true;
+  }
+
+  /**
+   * Records {@code value} for {@code name}, unless {@code name} is new and {@code maxProperties}
+   * names have already been recorded.
+   */
+  synchronized Result putUserProperty(String name, String value, int maxProperties) {
+    ensureLoaded();
+    if (userProperties.containsKey(name)) {
+      String current = userProperties.get(name);
+      if (current != UNKNOWN && equal(value, current)) {
+        return Result.UNCHANGED;
+      }
+    } else if (userProperties.size() >= maxProperties) {
+      return Result.OVER_LIMIT;
+    }
+    userProperties.put(name, value);
+    if (preferences != null) {
+      editor().putString(USER_PROPERTY_PREFIX + name, value);
+    }
+    return Result.CHANGED;
+  }
+
+  /** Forgets the last user ID recorded, for when it was never sent. */
+  synchronized void forgetUserId() {
+    ensureLoaded();
+    userId = null;
+    if (preferences != null) {
+      editor().remove(USER_ID_KEY);
+    }
+  }
+
+  /** Forgets the last value recorded for {@code name}, for when it was never sent. */
+  synchronized void forgetUserProperty(String name) {
+    ensureLoaded();
+    if (!userProperties.containsKey(name)) {
+      return;
+    }
+    userProperties.put(name, UNKNOWN);
+    if (preferences != null) {
+      editor().remove(USER_PROPERTY_PREFIX + name);
+    }
+  }
+
+  /** Writes the changes recorded since the last call to the preferences, in one edit. */
+  synchronized void apply() {
+    if (pending != null) {
+      pending.apply();
+      pending = null;
+    }
+  }
+
+  /** Forgets everything sent so far, so the next identify forwards every value again. */
+  synchronized void clear() {
+    loaded = true;
+    userId = null;
+    userProperties.clear();
+    pending = null;
+    if (preferences != null) {
+      preferences.edit().clear().apply();
+    }
+  }
+
+  private SharedPreferences.Editor editor() {
+    if (pending == null) {
+      pending = preferences.edit();
+    }
+    return pending;
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
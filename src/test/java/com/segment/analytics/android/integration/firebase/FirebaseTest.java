@@ -1,13 +1,23 @@
 package com.segment.analytics.android.integration.firebase;
 
 import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 
 import com.google.firebase.analytics.FirebaseAnalytics;
+import com.segment.analytics.Analytics;
 import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
 import com.segment.analytics.android.integrations.firebase.FirebaseIntegration;
+import com.segment.analytics.android.integrations.firebase.FirebaseMetrics;
+import com.segment.analytics.android.integrations.firebase.RecordingFirebaseSink;
 import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Integration;
 import com.segment.analytics.integrations.Logger;
 import com.segment.analytics.integrations.ScreenPayload;
 import com.segment.analytics.integrations.TrackPayload;
@@ -19,25 +29,40 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.rule.PowerMockRule;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.skyscreamer.jsonassert.JSONCompareMode;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import static com.segment.analytics.Analytics.LogLevel.VERBOSE;
+import static com.segment.analytics.internal.Utils.toISO8601Date;
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 @RunWith(RobolectricTestRunner.class)
@@ -81,17 +106,112 @@ public class FirebaseTest {
         verify(firebase).setUserId("foo");
         verify(firebase).setUserProperty("firstName", "bar");
         verify(firebase).setUserProperty("lastName", "baz");
-        verify(firebase).setUserProperty("Sign_Up_Date", String.valueOf(new Date(117, 6, 14)));
+        verify(firebase).setUserProperty("Sign_Up_Date", toISO8601Date(new Date(117, 6, 14)));
         verify(firebase).setUserProperty("extra_spaces", "bar");
         verify(firebase).setUserProperty("age", "20");
     }
 
+    @Test
+    public void identifySkipsUnchangedTraits() {
+        Map<String, Object> traits = new HashMap<>();
+        traits.put("firstName", "bar");
+        traits.put("lastName", "baz");
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+
+        traits.put("lastName", "qux");
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+
+        verify(firebase, times(1)).setUserId("foo");
+        verify(firebase, times(1)).setUserProperty("firstName", "bar");
+        verify(firebase).setUserProperty("lastName", "baz");
+        verify(firebase).setUserProperty("lastName", "qux");
+
+        integration.reset();
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+
+        verify(firebase, times(2)).setUserId("foo");
+        verify(firebase, times(2)).setUserProperty("firstName", "bar");
+    }
+
+    @Test
+    public void identifySkipsTraitsPersistedByPreviousInstance() {
+        Context context = RuntimeEnvironment.application;
+        Mockito.when(FirebaseAnalytics.getInstance(context)).thenReturn(firebase);
+        FirebaseIntegration.Options options =
+                new FirebaseIntegration.Options.Builder().persistUserProperties(true).build();
+        Map<String, Object> traits = new HashMap<>();
+        traits.put("firstName", "bar");
+
+        new FirebaseIntegration(context, Logger.with(VERBOSE), options)
+                .identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+        new FirebaseIntegration(context, Logger.with(VERBOSE), options)
+                .identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+
+        verify(firebase, times(1)).setUserId("foo");
+        verify(firebase, times(1)).setUserProperty("firstName", "bar");
+    }
+
+    @Test
+    public void identifyProjectsTraitsFromSettings() {
+        ValueMap settings = new ValueMap().putValue("userProperties", new ValueMap()
+                .putValue("plan", "subscription plan")
+                .putValue("age", new ValueMap().putValue("type", "number"))
+                .putValue("vip", new ValueMap().putValue("type", "boolean"))
+                .putValue("createdAt", new ValueMap().putValue("name", "signup_date")
+                        .putValue("type", "date")));
+        Integration<?> integration = createWithSettings(settings);
+        Map<String, Object> traits = new HashMap<>();
+        traits.put("plan", "pro");
+        traits.put("age", "20.0");
+        traits.put("vip", "TRUE");
+        traits.put("createdAt", 1500000000000L);
+        traits.put("bio", "a long biography");
+
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+
+        verify(firebase).setUserProperty("subscription_plan", "pro");
+        verify(firebase).setUserProperty("age", "20");
+        verify(firebase).setUserProperty("vip", "true");
+        verify(firebase).setUserProperty("signup_date", toISO8601Date(new Date(1500000000000L)));
+        verify(firebase, times(4)).setUserProperty(anyString(), anyString());
+    }
+
+    @Test
+    public void identifyKeepsUserPropertyLimitAcrossCalls() {
+        Map<String, Object> traits = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            traits.put("first_" + i, i);
+        }
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+        traits.clear();
+        for (int i = 0; i < 20; i++) {
+            traits.put("second_" + i, i);
+        }
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+        traits.put("first_0", 100);
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+
+        verify(firebase, times(26)).setUserProperty(anyString(), anyString());
+        verify(firebase).setUserProperty("first_0", "100");
+    }
+
     @Test
     public void track() {
         integration.track(new TrackPayload.Builder().anonymousId("12345").event("foo").build());
         verify(firebase).logEvent(eq("foo"), bundleEq(new Bundle()));
     }
 
+    @Test
+    public void trackWithValueDefaultsCurrency() {
+        integration.track(new TrackPayload.Builder().anonymousId("1234")
+                .properties(new Properties().putValue("value", 9.99)).event("foo").build());
+
+        Bundle expected = new Bundle();
+        expected.putDouble("value", 9.99);
+        expected.putString("currency", "USD");
+        verify(firebase).logEvent(eq("foo"), bundleEq(expected));
+    }
+
     @Test
     public void trackWithProperties() {
         Properties properties = new Properties()
@@ -110,7 +230,7 @@ public class FirebaseTest {
         expected.putInt("integer", 1);
         expected.putDouble("double", 1.0);
         expected.putString("string", "foo");
-        expected.putString("date", String.valueOf(new Date(117, 0, 1)));
+        expected.putString("date", toISO8601Date(new Date(117, 0, 1)));
         expected.putString("key_with_spaces", "bar");
         expected.putString("key_with_periods", "test");
         expected.putDouble("value", 100.0);
@@ -120,6 +240,55 @@ public class FirebaseTest {
         verify(firebase).logEvent(eq("foo"), bundleEq(expected));
     }
 
+    @Test
+    public void trackWithNestedAndTypedProperties() {
+        Context context = PowerMockito.mock(Context.class);
+        Mockito.when(FirebaseAnalytics.getInstance(context)).thenReturn(firebase);
+        FirebaseIntegration integration = new FirebaseIntegration(context, Logger.with(VERBOSE),
+                new FirebaseIntegration.Options.Builder().flattenNestedProperties(1).build());
+        ArrayList<String> tags = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            tags.add("tag-" + i);
+        }
+        Properties properties = new Properties()
+                .putValue("flag", true)
+                .putValue("ratio", 0.5f)
+                .putValue("count", (short) 3)
+                .putValue("address", new ValueMap()
+                        .putValue("city", "San Francisco")
+                        .putValue("geo", new ValueMap().putValue("lat", 37)))
+                .putValue("tags", tags);
+
+        integration.track(new TrackPayload.Builder().anonymousId("1234").properties(properties).event("foo").build());
+
+        Bundle expected = new Bundle();
+        expected.putString("flag", "true");
+        expected.putDouble("ratio", 0.5);
+        expected.putInt("count", 3);
+        expected.putString("address_city", "San Francisco");
+        expected.putString("address_geo", "{lat=37}");
+        expected.putString("tags", String.valueOf(tags).substring(0, 100));
+        verify(firebase).logEvent(eq("foo"), bundleEq(expected));
+    }
+
+    @Test
+    public void listElementEndingAtLimitIsTruncated() {
+        String element = new String(new char[99]).replace('\0', 'a');
+        Properties properties = new Properties().putValue("tags", Arrays.asList(element, "x"));
+        integration.track(new TrackPayload.Builder().anonymousId("1234").properties(properties).event("foo").build());
+
+        Bundle expected = new Bundle();
+        expected.putString("tags", "[" + element);
+        verify(firebase).logEvent(eq("foo"), bundleEq(expected));
+
+        String trait = new String(new char[35]).replace('\0', 'b');
+        Map<String, Object> traits = new HashMap<>();
+        traits.put("tags", Arrays.asList(trait, "y"));
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+
+        verify(firebase).setUserProperty("tags", "[" + trait);
+    }
+
     @Test
     public void trackPurchaseWithProducts() {
         Properties properties = new Properties()
@@ -152,6 +321,32 @@ public class FirebaseTest {
         verify(firebase).logEvent(eq("purchase"), bundleEq(expected));
     }
 
+    @Test
+    public void trackPurchaseWithLargeCart() {
+        Properties properties = new Properties().putValue("total", "25.5");
+        ArrayList<Object> products = new ArrayList<>();
+        ArrayList<Bundle> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            products.add(new Properties.Product(String.valueOf(i), "sku-" + i, i));
+            Bundle item = new Bundle();
+            item.putString("item_id", String.valueOf(i));
+            item.putString("sku", "sku-" + i);
+            item.putDouble("price", i);
+            items.add(item);
+        }
+        products.add("not a product");
+        properties.putValue("products", products);
+
+        integration.track(new TrackPayload.Builder().anonymousId("1234").properties(properties).event("Order Completed").build());
+
+        Bundle expected = new Bundle();
+        expected.putString("value", "25.5");
+        expected.putString("currency", "USD");
+        expected.putParcelableArrayList("items", items);
+
+        verify(firebase).logEvent(eq("purchase"), bundleEq(expected));
+    }
+
     @Test
     public void trackPurchaseWithNullProducts() {
         Properties properties = new Properties()
@@ -169,6 +364,418 @@ public class FirebaseTest {
         verify(firebase).logEvent(eq("purchase"), bundleEq(expected));
     }
 
+    @Test
+    public void trackReusesEventPlan() {
+        integration.track(new TrackPayload.Builder().anonymousId("1234")
+                .properties(new Properties().putValue("query", "shoes")).event("Products Searched").build());
+        integration.track(new TrackPayload.Builder().anonymousId("1234")
+                .properties(new Properties().putValue("query", "hats").putValue("sort.order", "asc"))
+                .event("Products Searched").build());
+
+        Bundle first = new Bundle();
+        first.putString("search_term", "shoes");
+        Bundle second = new Bundle();
+        second.putString("search_term", "hats");
+        second.putString("sort_order", "asc");
+
+        verify(firebase).logEvent(eq("search"), bundleEq(first));
+        verify(firebase).logEvent(eq("search"), bundleEq(second));
+    }
+
+    @Test
+    public void trackWithSettingsMappings() {
+        ValueMap settings = new ValueMap()
+                .putValue("eventMappings", new ValueMap().putValue("Video Played", "video start"))
+                .putValue("propertyMappings", new ValueMap().putValue("video_id", "item_id"))
+                .putValue("propertyAllowlists", new ValueMap()
+                        .putValue("Video Played", Arrays.asList("video_id", "position")))
+                .putValue("droppedEvents", Collections.singletonList("Scroll Depth Reached"));
+        Integration<?> integration = createWithSettings(settings);
+
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("Video Played")
+                .properties(new Properties()
+                        .putValue("video_id", "abc")
+                        .putValue("position", 30)
+                        .putValue("volume", 11))
+                .build());
+        integration.track(new TrackPayload.Builder().anonymousId("1234")
+                .event("Scroll Depth Reached").build());
+
+        Bundle expected = new Bundle();
+        expected.putString("item_id", "abc");
+        expected.putInt("position", 30);
+        verify(firebase).logEvent(eq("video_start"), bundleEq(expected));
+        verify(firebase, never()).logEvent(eq("Scroll_Depth_Reached"), any(Bundle.class));
+    }
+
+    @Test
+    public void trackWithEventPolicies() {
+        ValueMap settings = new ValueMap().putValue("eventPolicies", new ValueMap()
+                .putValue("Product Viewed", new ValueMap().putValue("sampleRate", 0))
+                .putValue("*", new ValueMap().putValue("maxPerSecond", 0).putValue("burst", 1)));
+        Integration<?> integration = createWithSettings(settings);
+
+        for (int i = 0; i < 3; i++) {
+            integration.track(new TrackPayload.Builder().anonymousId("1234").event("Product Viewed").build());
+            integration.track(new TrackPayload.Builder().anonymousId("1234").event("Scrolled").build());
+            integration.track(new TrackPayload.Builder().anonymousId("1234").event("Tapped").build());
+            integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed").build());
+        }
+
+        verify(firebase, never()).logEvent(eq("view_item"), any(Bundle.class));
+        // Each event has its own rate limit under the default policy.
+        verify(firebase, times(1)).logEvent(eq("Scrolled"), any(Bundle.class));
+        verify(firebase, times(1)).logEvent(eq("Tapped"), any(Bundle.class));
+        // Commerce events are exempt from the default policy.
+        verify(firebase, times(3)).logEvent(eq("purchase"), any(Bundle.class));
+    }
+
+    @Test
+    public void trackKeepsHighestPriorityParameters() {
+        ValueMap settings = new ValueMap()
+                .putValue("parameterPriority", Collections.singletonList("p29"));
+        Integration<?> integration = createWithSettings(settings);
+        Properties properties = new Properties();
+        for (int i = 0; i < 30; i++) {
+            properties.putValue("p" + i, i);
+        }
+        properties.putValue("revenue", 10.0).putValue("ga_session", "reserved");
+
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+                .properties(properties).build());
+
+        // Firebase accepts 25 parameters: the prioritized one, the mapped ones, then the first of
+        // the rest to arrive.
+        Bundle expected = new Bundle();
+        for (int i = 0; i < 22; i++) {
+            expected.putInt("p" + i, i);
+        }
+        expected.putInt("p29", 29);
+        expected.putDouble("value", 10.0);
+        expected.putString("currency", "USD");
+        verify(firebase).logEvent(eq("purchase"), bundleEq(expected));
+    }
+
+    @Test
+    public void trackSuppressesDuplicatesInsideWindow() {
+        ValueMap settings = new ValueMap()
+                .putValue("dedupWindows", new ValueMap().putValue("Button Tapped", 60000));
+        Integration<?> integration = createWithSettings(settings);
+
+        for (int i = 0; i < 3; i++) {
+            integration.track(new TrackPayload.Builder().anonymousId("1234").event("Button Tapped")
+                    .properties(new Properties().putValue("button", "buy")).build());
+            integration.track(new TrackPayload.Builder().anonymousId("1234").event("Scrolled").build());
+        }
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("Button Tapped")
+                .properties(new Properties().putValue("button", "cancel")).build());
+
+        Bundle buy = new Bundle();
+        buy.putString("button", "buy");
+        Bundle cancel = new Bundle();
+        cancel.putString("button", "cancel");
+        verify(firebase, times(1)).logEvent(eq("Button_Tapped"), bundleEq(buy));
+        verify(firebase, times(1)).logEvent(eq("Button_Tapped"), bundleEq(cancel));
+        verify(firebase, times(3)).logEvent(eq("Scrolled"), any(Bundle.class));
+    }
+
+    @Test
+    public void deferredCallsDroppedWhenBufferIsFullAreSentLater() {
+        final CountDownLatch initialized = new CountDownLatch(1);
+        Context context = PowerMockito.mock(Context.class);
+        Mockito.when(FirebaseAnalytics.getInstance(context)).thenAnswer(new Answer<FirebaseAnalytics>() {
+            @Override
+            public FirebaseAnalytics answer(InvocationOnMock invocation) throws Throwable {
+                initialized.await();
+                return firebase;
+            }
+        });
+        FirebaseIntegration integration = new FirebaseIntegration(context, Logger.with(VERBOSE),
+                new FirebaseIntegration.Options.Builder()
+                        .deferInitialization(1)
+                        .detectConstantProperties(2)
+                        .build());
+        Map<String, Object> traits = new HashMap<>();
+        traits.put("firstName", "bar");
+        traits.put("lastName", "baz");
+        Properties properties = new Properties().putValue("locale", "en");
+
+        // Only the user ID fits in the buffer.
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("a").properties(properties).build());
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("b").properties(properties).build());
+
+        ShadowLooper.pauseMainLooper();
+        initialized.countDown();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (integration.footprint().pendingCalls > 0 && System.currentTimeMillis() < deadline) {
+            ShadowLooper.runUiThreadTasks();
+        }
+        verify(firebase).setUserId("foo");
+        verify(firebase, never()).setUserProperty(anyString(), anyString());
+        verify(firebase, never()).setDefaultEventParameters(any(Bundle.class));
+
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("c").properties(properties).build());
+
+        Bundle defaults = new Bundle();
+        defaults.putString("locale", "en");
+        verify(firebase).setUserId("foo");
+        verify(firebase).setUserProperty("firstName", "bar");
+        verify(firebase).setUserProperty("lastName", "baz");
+        verify(firebase).setDefaultEventParameters(bundleEq(defaults));
+    }
+
+    @Test
+    public void deferredInitializationReplaysEarlyCallsInOrder() {
+        final CountDownLatch initialized = new CountDownLatch(1);
+        Context context = PowerMockito.mock(Context.class);
+        Mockito.when(FirebaseAnalytics.getInstance(context)).thenAnswer(new Answer<FirebaseAnalytics>() {
+            @Override
+            public FirebaseAnalytics answer(InvocationOnMock invocation) throws Throwable {
+                initialized.await();
+                return firebase;
+            }
+        });
+        FirebaseIntegration integration = new FirebaseIntegration(context, Logger.with(VERBOSE),
+                new FirebaseIntegration.Options.Builder().deferInitialization(16).build());
+
+        final Thread mainThread = Thread.currentThread();
+        final Thread[] screenThread = new Thread[1];
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                screenThread[0] = Thread.currentThread();
+                return null;
+            }
+        }).when(firebase).setCurrentScreen(any(Activity.class), anyString(), (String) isNull());
+        ShadowLooper.pauseMainLooper();
+        Activity activity = PowerMockito.mock(Activity.class);
+        integration.onActivityStarted(activity);
+
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo").build());
+        integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("home").build());
+        integration.identify(new IdentifyPayload.Builder().userId("bar")
+                .traits(new HashMap<String, Object>()).build());
+        verify(firebase, never()).logEvent(anyString(), any(Bundle.class));
+
+        initialized.countDown();
+        // The calls are replayed on the main thread once Firebase is ready.
+        long deadline = System.currentTimeMillis() + 1000;
+        while (integration.footprint().pendingCalls > 0 && System.currentTimeMillis() < deadline) {
+            ShadowLooper.runUiThreadTasks();
+        }
+        InOrder inOrder = Mockito.inOrder(firebase);
+        inOrder.verify(firebase).logEvent(eq("foo"), any(Bundle.class));
+        inOrder.verify(firebase).setCurrentScreen(activity, "home", null);
+        inOrder.verify(firebase).setUserId("bar");
+        assertEquals(mainThread, screenThread[0]);
+    }
+
+    @Test
+    public void recordingSinkRunsWithoutFirebase() {
+        RecordingFirebaseSink sink = new RecordingFirebaseSink();
+        FirebaseIntegration integration = new FirebaseIntegration(sink, Logger.with(VERBOSE),
+                new FirebaseIntegration.Options.Builder().build());
+
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("Order Completed")
+                .properties(new Properties().putValue("revenue", 10.0)).build());
+        integration.identify(new IdentifyPayload.Builder().userId("foo")
+                .traits(new HashMap<String, Object>()).build());
+
+        List<RecordingFirebaseSink.Call> calls = sink.calls();
+        assertEquals(RecordingFirebaseSink.Method.LOG_EVENT, calls.get(0).method);
+        assertEquals("purchase", calls.get(0).name);
+        assertEquals(10.0, calls.get(0).params.getDouble("value"), 0);
+        assertEquals("USD", calls.get(0).params.getString("currency"));
+        assertEquals(RecordingFirebaseSink.Method.SET_USER_ID, calls.get(1).method);
+        assertEquals("foo", calls.get(1).value);
+        verify(firebase, never()).logEvent(anyString(), any(Bundle.class));
+    }
+
+    @Test
+    public void concurrentTracksKeepPerThreadOrder() throws InterruptedException {
+        final RecordingFirebaseSink sink = new RecordingFirebaseSink();
+        final FirebaseIntegration integration = new FirebaseIntegration(sink,
+                Logger.with(Analytics.LogLevel.NONE),
+                new FirebaseIntegration.Options.Builder().build());
+        final int threads = 8;
+        final int tracksPerThread = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final String event = "thread_" + t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < tracksPerThread; i++) {
+                        integration.track(new TrackPayload.Builder().anonymousId("1234")
+                                .event(event)
+                                .properties(new Properties().putValue("seq", i)
+                                        .putValue("tag " + (i % 300), true))
+                                .build());
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        int[] next = new int[threads];
+        for (RecordingFirebaseSink.Call call : sink.calls()) {
+            int t = Integer.parseInt(call.name.substring("thread_".length()));
+            assertEquals(next[t], call.params.getInt("seq"));
+            assertEquals("true", call.params.getString("tag_" + (next[t] % 300)));
+            next[t]++;
+        }
+        for (int t = 0; t < threads; t++) {
+            assertEquals(tracksPerThread, next[t]);
+        }
+    }
+
+    @Test
+    public void sampledDebugLoggingLogsEveryNthEvent() {
+        FirebaseIntegration integration = new FirebaseIntegration(new RecordingFirebaseSink(),
+                Logger.with(Analytics.LogLevel.DEBUG),
+                new FirebaseIntegration.Options.Builder().sampleDebugLogging(3).build());
+
+        for (int i = 0; i < 7; i++) {
+            integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo")
+                    .properties(new Properties().putValue("seq", i)).build());
+        }
+
+        int sampled = 0;
+        for (ShadowLog.LogItem item : ShadowLog.getLogs()) {
+            if (item.msg.startsWith("Sampled 1 in 3: firebaseAnalytics.logEvent(foo")) {
+                sampled++;
+            }
+        }
+        assertEquals(3, sampled);
+    }
+
+    @Test
+    public void trimMemoryShrinksCachesUntilActivityStarts() {
+        for (int i = 0; i < 40; i++) {
+            integration.track(new TrackPayload.Builder().anonymousId("1234").event("event " + i)
+                    .properties(new Properties().putValue("key " + i, i)).build());
+        }
+        assertEquals(40, integration.footprint().eventPlans);
+        assertEquals(40, integration.footprint().plannedKeys);
+
+        integration.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(40, integration.footprint().eventPlans);
+
+        integration.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(0, integration.footprint().eventPlans);
+        assertEquals(true, integration.footprint().trimmed);
+
+        for (int i = 0; i < 40; i++) {
+            integration.track(new TrackPayload.Builder().anonymousId("1234").event("event " + i)
+                    .build());
+        }
+        assertEquals(32, integration.footprint().eventPlans);
+        verify(firebase, times(2)).logEvent(eq("event_39"), any(Bundle.class));
+
+        integration.onActivityStarted(Mockito.mock(Activity.class));
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("event 39").build());
+        assertEquals(33, integration.footprint().eventPlans);
+        assertEquals(false, integration.footprint().trimmed);
+    }
+
+    @Test
+    public void trackKeepsCurrencyOutOfDefaults() {
+        ValueMap settings = new ValueMap()
+                .putValue("defaultEventParameters", Arrays.asList("locale", "currency"));
+        Integration<?> integration = createWithSettings(settings);
+
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo")
+                .properties(new Properties().putValue("locale", "en").putValue("revenue", 10.0)
+                        .putValue("currency", "EUR")).build());
+
+        Bundle defaults = new Bundle();
+        defaults.putString("locale", "en");
+        Bundle expected = new Bundle();
+        expected.putDouble("value", 10.0);
+        expected.putString("currency", "EUR");
+        verify(firebase).setDefaultEventParameters(bundleEq(defaults));
+        verify(firebase).logEvent(eq("foo"), bundleEq(expected));
+    }
+
+    @Test
+    public void trackHoistsConstantPropertiesIntoDefaults() {
+        ValueMap settings = new ValueMap()
+                .putValue("defaultEventParameters", Collections.singletonList("locale"));
+        Integration<?> integration = createWithSettings(settings);
+
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo")
+                .properties(new Properties().putValue("locale", "en").putValue("x", 1)).build());
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("bar")
+                .properties(new Properties().putValue("locale", "en")).build());
+        integration.track(new TrackPayload.Builder().anonymousId("1234").event("baz")
+                .properties(new Properties().putValue("locale", "fr")).build());
+
+        Bundle en = new Bundle();
+        en.putString("locale", "en");
+        Bundle fr = new Bundle();
+        fr.putString("locale", "fr");
+        Bundle foo = new Bundle();
+        foo.putInt("x", 1);
+        InOrder inOrder = Mockito.inOrder(firebase);
+        inOrder.verify(firebase).setDefaultEventParameters(bundleEq(en));
+        inOrder.verify(firebase).logEvent(eq("foo"), bundleEq(foo));
+        inOrder.verify(firebase).logEvent(eq("bar"), bundleEq(new Bundle()));
+        inOrder.verify(firebase).setDefaultEventParameters(bundleEq(fr));
+        // The event with the new value keeps it.
+        inOrder.verify(firebase).logEvent(eq("baz"), bundleEq(fr));
+        verify(firebase, times(2)).setDefaultEventParameters(any(Bundle.class));
+    }
+
+    @Test
+    public void trackDemotesDetectedPropertyWhenItChanges() {
+        Context context = PowerMockito.mock(Context.class);
+        Mockito.when(FirebaseAnalytics.getInstance(context)).thenReturn(firebase);
+        FirebaseIntegration integration = new FirebaseIntegration(context, Logger.with(VERBOSE),
+                new FirebaseIntegration.Options.Builder().detectConstantProperties(2).build());
+
+        for (String locale : Arrays.asList("en", "en", "fr", "en")) {
+            integration.track(new TrackPayload.Builder().anonymousId("1234").event("foo")
+                    .properties(new Properties().putValue("locale", locale)).build());
+        }
+
+        Bundle en = new Bundle();
+        en.putString("locale", "en");
+        Bundle fr = new Bundle();
+        fr.putString("locale", "fr");
+        Bundle removed = new Bundle();
+        removed.putString("locale", null);
+        InOrder inOrder = Mockito.inOrder(firebase);
+        inOrder.verify(firebase).logEvent(eq("foo"), bundleEq(en));
+        inOrder.verify(firebase).setDefaultEventParameters(bundleEq(en));
+        inOrder.verify(firebase).logEvent(eq("foo"), bundleEq(new Bundle()));
+        inOrder.verify(firebase).setDefaultEventParameters(bundleEq(removed));
+        inOrder.verify(firebase).logEvent(eq("foo"), bundleEq(fr));
+        inOrder.verify(firebase).logEvent(eq("foo"), bundleEq(en));
+        verify(firebase, times(2)).setDefaultEventParameters(any(Bundle.class));
+    }
+
+    private Integration<?> createWithSettings(ValueMap settings) {
+        Application application = PowerMockito.mock(Application.class);
+        Mockito.when(FirebaseAnalytics.getInstance(application)).thenReturn(firebase);
+        Analytics analytics = Mockito.mock(Analytics.class);
+        Mockito.when(analytics.getApplication()).thenReturn(application);
+        Mockito.when(analytics.logger("Firebase")).thenReturn(Logger.with(VERBOSE));
+        return FirebaseIntegration.FACTORY.create(settings, analytics);
+    }
+
     @Test
     public void trackWithEventNameTransformation() {
         Properties properties = new Properties()
@@ -187,7 +794,7 @@ public class FirebaseTest {
         expected.putInt("integer", 1);
         expected.putDouble("double", 1.0);
         expected.putString("string", "foo");
-        expected.putString("date", String.valueOf(new Date(117, 0, 1)));
+        expected.putString("date", toISO8601Date(new Date(117, 0, 1)));
         expected.putString("key_with_spaces", "bar");
         expected.putString("key_with_periods", "test");
         expected.putDouble("value", 100.0);
@@ -213,6 +820,171 @@ public class FirebaseTest {
         verify(firebase).setCurrentScreen(any(Activity.class), eq("home_screen"), (String) isNull());
     }
 
+    @Test
+    public void screenSkipsRepeatedName() {
+        Activity activity = PowerMockito.mock(Activity.class);
+        integration.onActivityStarted(activity);
+
+        integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("home_screen").build());
+        integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("home_screen").build());
+        integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("cart").build());
+
+        verify(firebase, times(1)).setCurrentScreen(activity, "home_screen", null);
+        verify(firebase, times(1)).setCurrentScreen(activity, "cart", null);
+    }
+
+    @Test
+    public void screenAsScreenViewEvent() {
+        Context context = PowerMockito.mock(Context.class);
+        Mockito.when(FirebaseAnalytics.getInstance(context)).thenReturn(firebase);
+        FirebaseIntegration integration = new FirebaseIntegration(context, Logger.with(VERBOSE),
+                new FirebaseIntegration.Options.Builder().logScreenViews(true).build());
+
+        integration.screen(new ScreenPayload.Builder().anonymousId("1234").name("home_screen").build());
+
+        Bundle expected = new Bundle();
+        expected.putString("screen_name", "home_screen");
+        verify(firebase).logEvent(eq("screen_view"), bundleEq(expected));
+        verify(firebase, never()).setCurrentScreen(any(Activity.class), anyString(), (String) isNull());
+    }
+
+    @Test
+    public void trackAsynchronouslyPreservesOrder() {
+        Context context = PowerMockito.mock(Context.class);
+        Mockito.when(FirebaseAnalytics.getInstance(context)).thenReturn(firebase);
+        FirebaseIntegration asyncIntegration = new FirebaseIntegration(context, Logger.with(VERBOSE),
+                new FirebaseIntegration.Options.Builder()
+                        .dispatchAsynchronously(16, FirebaseIntegration.OverflowPolicy.BLOCK)
+                        .build());
+
+        for (int i = 0; i < 100; i++) {
+            asyncIntegration.track(new TrackPayload.Builder().anonymousId("1234").event("event " + i).build());
+        }
+        asyncIntegration.flush();
+
+        InOrder inOrder = Mockito.inOrder(firebase);
+        for (int i = 0; i < 100; i++) {
+            inOrder.verify(firebase).logEvent(eq("event_" + i), bundleEq(new Bundle()));
+        }
+    }
+
+    @Test
+    public void screenAsynchronouslyStaysOnCallingThread() {
+        Context context = PowerMockito.mock(Context.class);
+        Mockito.when(FirebaseAnalytics.getInstance(context)).thenReturn(firebase);
+        final Thread caller = Thread.currentThread();
+        final Thread[] screenThread = new Thread[1];
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                screenThread[0] = Thread.currentThread();
+                return null;
+            }
+        }).when(firebase).setCurrentScreen(any(Activity.class), anyString(), (String) isNull());
+        FirebaseIntegration asyncIntegration = new FirebaseIntegration(context, Logger.with(VERBOSE),
+                new FirebaseIntegration.Options.Builder()
+                        .dispatchAsynchronously(16, FirebaseIntegration.OverflowPolicy.BLOCK)
+                        .build());
+        Activity activity = PowerMockito.mock(Activity.class);
+        asyncIntegration.onActivityStarted(activity);
+
+        asyncIntegration.screen(new ScreenPayload.Builder().anonymousId("1234").name("home_screen").build());
+
+        verify(firebase).setCurrentScreen(activity, "home_screen", null);
+        assertEquals(caller, screenThread[0]);
+    }
+
+    @Test
+    public void trackAsynchronouslyDropsNewestWhenFull() throws InterruptedException {
+        Context context = PowerMockito.mock(Context.class);
+        Mockito.when(FirebaseAnalytics.getInstance(context)).thenReturn(firebase);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        }).when(firebase).logEvent(eq("first"), any(Bundle.class));
+        FirebaseIntegration asyncIntegration = new FirebaseIntegration(context, Logger.with(VERBOSE),
+                new FirebaseIntegration.Options.Builder()
+                        .dispatchAsynchronously(1, FirebaseIntegration.OverflowPolicy.DROP_NEWEST)
+                        .build());
+
+        asyncIntegration.track(new TrackPayload.Builder().anonymousId("1234").event("first").build());
+        started.await();
+        asyncIntegration.track(new TrackPayload.Builder().anonymousId("1234").event("second").build());
+        asyncIntegration.track(new TrackPayload.Builder().anonymousId("1234").event("third").build());
+        release.countDown();
+        asyncIntegration.flush();
+
+        verify(firebase).logEvent(eq("second"), bundleEq(new Bundle()));
+        verify(firebase, never()).logEvent(eq("third"), any(Bundle.class));
+    }
+
+    @Test
+    public void metricsRecordsCallsAndSanitizedKeys() {
+        Context context = PowerMockito.mock(Context.class);
+        Mockito.when(FirebaseAnalytics.getInstance(context)).thenReturn(firebase);
+        FirebaseMetrics.Listener listener = Mockito.mock(FirebaseMetrics.Listener.class);
+        FirebaseMetrics metrics = new FirebaseMetrics(listener);
+        FirebaseIntegration integration = new FirebaseIntegration(context, Logger.with(VERBOSE),
+                new FirebaseIntegration.Options.Builder().metrics(metrics).build());
+
+        Properties properties = new Properties()
+                .putValue("key with spaces", "bar")
+                .putValue("abcdefghijklmnopqrstuvwxyzabcdefghijklmnopqrstuvwxyz", "baz");
+        integration.track(new TrackPayload.Builder().anonymousId("1234").properties(properties).event("foo").build());
+        integration.track(new TrackPayload.Builder().anonymousId("1234").properties(properties).event("foo").build());
+        integration.identify(new IdentifyPayload.Builder().userId("foo").traits(new HashMap<String, Object>()).build());
+
+        FirebaseMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.count(FirebaseMetrics.Timer.TRACK));
+        assertEquals(2, snapshot.count(FirebaseMetrics.Timer.FORMAT));
+        assertEquals(1, snapshot.count(FirebaseMetrics.Timer.IDENTIFY));
+        assertEquals(3, snapshot.count(FirebaseMetrics.Timer.FIREBASE_CALL));
+        // Keys are only counted the first time they are resolved for an event.
+        assertEquals(1, snapshot.count(FirebaseMetrics.Counter.KEYS_SANITIZED));
+        assertEquals(1, snapshot.count(FirebaseMetrics.Counter.KEYS_TRUNCATED));
+        verify(listener, times(2)).onTiming(eq(FirebaseMetrics.Timer.TRACK), Mockito.anyLong());
+    }
+
+    @Test
+    public void activityResumedCachesLabel() throws PackageManager.NameNotFoundException {
+        ComponentName component = new ComponentName("com.example", "com.example.HomeActivity");
+        ActivityInfo info = new ActivityInfo();
+        info.nonLocalizedLabel = "Home";
+        PackageManager packageManager = Mockito.mock(PackageManager.class);
+        Mockito.when(packageManager.getActivityInfo(component, PackageManager.GET_META_DATA))
+                .thenReturn(info);
+        Activity activity = PowerMockito.mock(Activity.class);
+        Mockito.when(activity.getPackageManager()).thenReturn(packageManager);
+        Mockito.when(activity.getComponentName()).thenReturn(component);
+
+        integration.onActivityResumed(activity);
+        integration.onActivityResumed(activity);
+
+        verify(packageManager, times(1)).getActivityInfo(component, PackageManager.GET_META_DATA);
+        verify(firebase, times(2)).setCurrentScreen(activity, "Home", null);
+    }
+
+    @Test
+    public void activityResumedWithUnknownActivity() throws PackageManager.NameNotFoundException {
+        ComponentName component = new ComponentName("com.example", "com.example.Missing");
+        PackageManager packageManager = Mockito.mock(PackageManager.class);
+        Mockito.when(packageManager.getActivityInfo(component, PackageManager.GET_META_DATA))
+                .thenThrow(new PackageManager.NameNotFoundException());
+        Activity activity = PowerMockito.mock(Activity.class);
+        Mockito.when(activity.getPackageManager()).thenReturn(packageManager);
+        Mockito.when(activity.getComponentName()).thenReturn(component);
+
+        integration.onActivityResumed(activity);
+
+        verify(firebase, never()).setCurrentScreen(any(Activity.class), anyString(), (String) isNull());
+    }
+
     @Test
     public void makeKeyWithDash() {
         integration.track(new TrackPayload.Builder().anonymousId("12345").event("test-event-dashed").build());
@@ -243,6 +1015,22 @@ public class FirebaseTest {
         verify(firebase).logEvent(eq("test_colon"), bundleEq(new Bundle()));
     }
 
+    @Test
+    public void makeKeyTruncatesToFortyCharacters() {
+        String key = "abcdefghijklmnopqrstuvwxyzabcdefghijklmnopqrstuvwxyz";
+        assertEquals(key.substring(0, 40), FirebaseIntegration.makeKey(key));
+        assertEquals("a_b_c_d_e_f_g_h_i_j_k_l_m_n_o_p_q_r_s_t_",
+                FirebaseIntegration.makeKey("  a.b-c:d e.f-g:h i.j-k:l m.n-o:p q.r-s:t u.v  "));
+    }
+
+    @Test
+    public void makeKeyOnlyTrimsWhenSanitizing() {
+        assertEquals("\tfoo\t", FirebaseIntegration.makeKey("\tfoo\t"));
+        assertEquals("foo_bar", FirebaseIntegration.makeKey("\tfoo bar\t"));
+        // Second lookup is served from the cache and must be identical.
+        assertEquals("foo_bar", FirebaseIntegration.makeKey("\tfoo bar\t"));
+    }
+
     /**
      * Uses the string representation of the object. Useful for JSON objects.
      * @param expected Expected object